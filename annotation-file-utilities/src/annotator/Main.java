@@ -6,6 +6,9 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -16,6 +19,16 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -23,7 +36,6 @@ import org.plumelib.options.Option;
 import org.plumelib.options.OptionGroup;
 import org.plumelib.options.Options;
 import org.plumelib.util.FileIOException;
-import org.plumelib.util.UtilPlume;
 import org.plumelib.util.Pair;
 import scenelib.type.Type;
 import scenelib.annotations.Annotation;
@@ -47,11 +59,13 @@ import scenelib.annotations.io.ASTRecord;
 import scenelib.annotations.io.DebugWriter;
 import scenelib.annotations.io.IndexFileParser;
 import scenelib.annotations.io.IndexFileWriter;
+import scenelib.annotations.io.classfile.ClassBytesProvider;
 import scenelib.annotations.util.coll.VivifyingMap;
 import annotator.find.AnnotationInsertion;
 import annotator.find.CastInsertion;
 import annotator.find.ConstructorInsertion;
 import annotator.find.Criteria;
+import annotator.find.Criterion;
 import annotator.find.GenericArrayLocationCriterion;
 import annotator.find.Insertion;
 import annotator.find.Insertions;
@@ -63,6 +77,7 @@ import annotator.scanner.LocalVariableScanner;
 import annotator.specification.IndexFileSpecification;
 
 import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.SetMultimap;
 import com.sun.source.tree.CompilationUnitTree;
@@ -115,6 +130,17 @@ import com.sun.tools.javac.tree.JCTree;
  *             insertions [default false]
  *         <li id="option:convert-jaifs"><b>--convert-jaifs=</b><i>boolean</i>. Convert JAIFs to AST
  *             Path format [default false]
+ *         <li id="option:threads"><b>--threads=</b><i>int</i>. Number of worker threads used to
+ *             process the Java files. Each thread parses and rewrites whole files; files that can
+ *             receive the same insertions are matched against them one at a time. Ignored with
+ *             --convert-jaifs. [default 1]
+ *         <li id="option:batch-size"><b>--batch-size=</b><i>int</i>. Number of Java files that are
+ *             parsed and analyzed together by one compiler task. Larger batches share compiler
+ *             start-up and symbol loading among more files, but keep the syntax trees of the whole
+ *             batch in memory. [default 1]
+ *         <li id="option:encoding"><b>--encoding=</b><i>string</i>. Character encoding of the Java
+ *             files, used both to read them and to write the annotated files. If not given, the
+ *             platform's default charset is used.
  *         <li id="option:help"><b>-h</b> <b>--help=</b><i>boolean</i>. Print usage information and
  *             exit [default false]
  *       </ul>
@@ -177,6 +203,40 @@ public class Main {
   @Option("Convert JAIFs to AST Path format")
   public static boolean convert_jaifs = false;
 
+  /**
+   * Number of worker threads used to process the Java files.  Each thread
+   * parses and rewrites whole files; files that can receive the same
+   * insertions are matched against them one at a time.  Ignored with
+   * --convert-jaifs.
+   */
+  @Option("Number of threads for processing Java files")
+  public static int threads = 1;
+
+  /**
+   * Number of Java files that are parsed and analyzed together by one
+   * compiler task.  Larger batches share compiler start-up and symbol
+   * loading among more files, but keep the syntax trees of the whole
+   * batch in memory.
+   */
+  @Option("Number of Java files to parse with one compiler task")
+  public static int batch_size = 1;
+
+  /**
+   * Character encoding of the Java files, used both to read them and to
+   * write the annotated files.  If not given, the platform's default
+   * charset is used.
+   */
+  @Option("Character encoding of the Java files")
+  public static String encoding = null;
+
+  /**
+   * Path of directories, jars and jmods in which to look up the class
+   * files of annotated classes, whose bytecode offsets some annotation
+   * files refer to.  If not given, the JVM classpath is used.
+   */
+  @Option("Path of directories, jars and jmods to read class files from")
+  public static String class_path = null;
+
   @Option("-h Print usage information and exit")
   public static boolean help = false;
 
@@ -195,6 +255,17 @@ public class Main {
   // TODO: remove this.
   public static boolean temporaryDebug = false;
 
+  private static final DebugWriter dbug = new DebugWriter();
+  private static final DebugWriter verb = new DebugWriter();
+  private static final DebugWriter both = dbug.or(verb);
+
+  /** Map from outer class name to the lock guarding its insertions. */
+  private static final ConcurrentMap<String, Lock> insertionLocks =
+      new ConcurrentHashMap<>();
+
+  /** The number of Java files copied without being parsed. */
+  private static final AtomicInteger filesSkipped = new AtomicInteger();
+
   private static ElementVisitor<Void, AElement> classFilter =
       new ElementVisitor<Void, AElement>() {
     <K, V extends AElement>
@@ -529,9 +600,6 @@ public class Main {
       System.exit(1);
     }
 
-    DebugWriter dbug = new DebugWriter();
-    DebugWriter verb = new DebugWriter();
-    DebugWriter both = dbug.or(verb);
     dbug.setEnabled(debug);
     verb.setEnabled(verbose);
     TreeFinder.warn.setEnabled(!nowarn);
@@ -550,6 +618,15 @@ public class Main {
       System.exit(1);
     }
 
+    if (encoding != null) {
+      try {
+        Charset.forName(encoding);
+      } catch (IllegalArgumentException e) {
+        System.out.println("Unsupported encoding: " + encoding);
+        System.exit(1);
+      }
+    }
+
     if (file_args.length < 2) {
       System.out.printf("Supplied %d arguments, at least 2 needed%n", file_args.length);
       System.out.printf("Supplied arguments: %s%n", Arrays.toString(args));
@@ -575,87 +652,95 @@ public class Main {
     // Value: names of packages this annotation needs.
     Map<String, Set<String>> annotationImports = new HashMap<>();
 
+    ClassBytesProvider classBytes = class_path == null
+        ? ClassBytesProvider.SYSTEM
+        : ClassBytesProvider.forClassPath(class_path);
+
     IndexFileParser.setAbbreviate(abbreviate);
-    for (String arg : file_args) {
-      if (arg.endsWith(".java")) {
-        javafiles.add(arg);
-      } else if (arg.endsWith(".jaif") ||
-                 arg.endsWith(".jann")) {
-        IndexFileSpecification spec = new IndexFileSpecification(arg);
-        try {
-          List<Insertion> parsedSpec = spec.parse();
-          if (temporaryDebug) {
-            System.out.printf("parsedSpec (size %d):%n", parsedSpec.size());
-            for (Insertion insertion : parsedSpec) {
-              System.out.printf("  %s, isInserted=%s%n", insertion, insertion.isInserted());
+    try {
+      for (String arg : file_args) {
+        if (arg.endsWith(".java")) {
+          javafiles.add(arg);
+        } else if (arg.endsWith(".jaif") ||
+                   arg.endsWith(".jann")) {
+          IndexFileSpecification spec = new IndexFileSpecification(arg, classBytes);
+          try {
+            List<Insertion> parsedSpec = spec.parse();
+            if (temporaryDebug) {
+              System.out.printf("parsedSpec (size %d):%n", parsedSpec.size());
+              for (Insertion insertion : parsedSpec) {
+                System.out.printf("  %s, isInserted=%s%n", insertion, insertion.isInserted());
+              }
             }
-          }
-          AScene scene = spec.getScene();
-          Collections.sort(parsedSpec, new Comparator<Insertion>() {
-            @Override
-            public int compare(Insertion i1, Insertion i2) {
-              ASTPath p1 = i1.getCriteria().getASTPath();
-              ASTPath p2 = i2.getCriteria().getASTPath();
-              return p1 == null
-                  ? p2 == null ? 0 : -1
-                  : p2 == null ? 1 : p1.compareTo(p2);
+            AScene scene = spec.getScene();
+            Collections.sort(parsedSpec, new Comparator<Insertion>() {
+              @Override
+              public int compare(Insertion i1, Insertion i2) {
+                ASTPath p1 = i1.getCriteria().getASTPath();
+                ASTPath p2 = i2.getCriteria().getASTPath();
+                return p1 == null
+                    ? p2 == null ? 0 : -1
+                    : p2 == null ? 1 : p1.compareTo(p2);
+              }
+            });
+            if (convert_jaifs) {
+              scenes.put(arg, filteredScene(scene));
+              for (Insertion ins : parsedSpec) {
+                insertionOrigins.put(ins, arg);
+              }
+              if (!insertionIndex.containsKey(arg)) {
+                insertionIndex.put(arg,
+                    LinkedHashMultimap.<Insertion, Annotation>create());
+              }
+              insertionIndex.get(arg).putAll(spec.insertionSources());
             }
-          });
-          if (convert_jaifs) {
-            scenes.put(arg, filteredScene(scene));
-            for (Insertion ins : parsedSpec) {
-              insertionOrigins.put(ins, arg);
+            both.debug("Read %d annotations from %s%n", parsedSpec.size(), arg);
+            if (omit_annotation != null) {
+              List<Insertion> filtered =
+                  new ArrayList<Insertion>(parsedSpec.size());
+              for (Insertion insertion : parsedSpec) {
+                // TODO: this won't omit annotations if the insertion is more than
+                // just the annotation (such as if the insertion is a cast
+                // insertion or a 'this' parameter in a method declaration).
+                if (! omit_annotation.equals(insertion.getText())) {
+                  filtered.add(insertion);
+                }
+              }
+              parsedSpec = filtered;
+              both.debug("After filtering: %d annotations from %s%n",
+                  parsedSpec.size(), arg);
             }
-            if (!insertionIndex.containsKey(arg)) {
-              insertionIndex.put(arg,
-                  LinkedHashMultimap.<Insertion, Annotation>create());
+            insertions.addAll(parsedSpec);
+            annotationImports.putAll(spec.annotationImports());
+          } catch (RuntimeException e) {
+            if (e.getCause() != null
+                && e.getCause() instanceof FileNotFoundException) {
+              System.err.println("File not found: " + arg);
+              System.exit(1);
+            } else {
+              throw e;
             }
-            insertionIndex.get(arg).putAll(spec.insertionSources());
-          }
-          both.debug("Read %d annotations from %s%n", parsedSpec.size(), arg);
-          if (omit_annotation != null) {
-            List<Insertion> filtered =
-                new ArrayList<Insertion>(parsedSpec.size());
-            for (Insertion insertion : parsedSpec) {
-              // TODO: this won't omit annotations if the insertion is more than
-              // just the annotation (such as if the insertion is a cast
-              // insertion or a 'this' parameter in a method declaration).
-              if (! omit_annotation.equals(insertion.getText())) {
-                filtered.add(insertion);
-              }
+          } catch (FileIOException e) {
+            // Add 1 to the line number since line numbers in text editors are usually one-based.
+            System.err.println("Error while parsing annotation file " + arg + " at line "
+                + (e.lineNumber + 1) + ":");
+            if (e.getMessage() != null) {
+              System.err.println('\t' + e.getMessage());
+            }
+            if (e.getCause() != null && e.getCause().getMessage() != null) {
+              System.err.println('\t' + e.getCause().getMessage());
+            }
+            if (print_error_stack) {
+              e.printStackTrace();
             }
-            parsedSpec = filtered;
-            both.debug("After filtering: %d annotations from %s%n",
-                parsedSpec.size(), arg);
-          }
-          insertions.addAll(parsedSpec);
-          annotationImports.putAll(spec.annotationImports());
-        } catch (RuntimeException e) {
-          if (e.getCause() != null
-              && e.getCause() instanceof FileNotFoundException) {
-            System.err.println("File not found: " + arg);
             System.exit(1);
-          } else {
-            throw e;
           }
-        } catch (FileIOException e) {
-          // Add 1 to the line number since line numbers in text editors are usually one-based.
-          System.err.println("Error while parsing annotation file " + arg + " at line "
-              + (e.lineNumber + 1) + ":");
-          if (e.getMessage() != null) {
-            System.err.println('\t' + e.getMessage());
-          }
-          if (e.getCause() != null && e.getCause().getMessage() != null) {
-            System.err.println('\t' + e.getCause().getMessage());
-          }
-          if (print_error_stack) {
-            e.printStackTrace();
-          }
-          System.exit(1);
+        } else {
+          throw new Error("Unrecognized file extension: " + arg);
         }
-      } else {
-        throw new Error("Unrecognized file extension: " + arg);
       }
+    } finally {
+      classBytes.close();
     }
 
     if (dbug.isEnabled()) {
@@ -668,7 +753,113 @@ public class Main {
       }
     }
 
-    for (String javafilename : javafiles) {
+    List<List<String>> batches =
+        Lists.partition(javafiles, Math.max(1, batch_size));
+    if (threads > 1 && !convert_jaifs && batches.size() > 1) {
+      processBatchesInParallel(batches, insertions, annotationImports);
+    } else {
+      for (List<String> batch : batches) {
+        if (!processBatch(batch, insertions, annotationImports,
+            insertionIndex, insertionOrigins, scenes)) {
+          return;
+        }
+      }
+    }
+    if (verb.isEnabled()) {
+      verb.debug("Skipped parsing %d of %d Java files with no candidate insertions%n",
+          filesSkipped.get(), javafiles.size());
+      verb.debug("AST index cache: %d hits, %d misses, %.1f ms building indexes%n",
+          ASTIndex.getCacheHits(), ASTIndex.getCacheMisses(),
+          ASTIndex.getBuildNanos() / 1e6);
+      for (Criterion.Kind kind : Criterion.Kind.values()) {
+        long evaluated = Criteria.getEvaluations(kind);
+        if (evaluated > 0) {
+          verb.debug("Criterion %s: %d evaluations, %d rejections%n",
+              kind, evaluated, Criteria.getRejections(kind));
+        }
+      }
+    }
+  }
+
+  /**
+   * Processes the given batches of source files on a pool of {@link
+   * #threads} worker threads.  Each worker parses, rewrites, and writes
+   * its own source files.  The insertions read from the annotation files
+   * are shared, and are modified while they are matched against a file,
+   * so that step is done under the locks taken by {@link
+   * #lockInsertions}; the annotation imports are only read.  Processing
+   * stops at the first batch for which {@link #processBatch} returns
+   * false.
+   *
+   * @param batches the Java files into which to insert, in batches
+   * @param insertions the insertions specified by the annotation files
+   * @param annotationImports map from fully-qualified annotation name to the
+   *     imports it needs
+   * @throws IOException if a worker throws an IOException
+   */
+  private static void processBatchesInParallel(List<List<String>> batches,
+      final Insertions insertions,
+      final Map<String, Set<String>> annotationImports) throws IOException {
+    ExecutorService executor =
+        Executors.newFixedThreadPool(Math.min(threads, batches.size()));
+    try {
+      List<Future<Boolean>> results = new ArrayList<>(batches.size());
+      for (final List<String> batch : batches) {
+        results.add(executor.submit(new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws IOException {
+            return processBatch(batch, insertions, annotationImports,
+                null, null, null);
+          }
+        }));
+      }
+      for (Future<Boolean> result : results) {
+        if (!result.get()) {
+          return;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new Error(cause);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Inserts annotations into a batch of Java files and writes the
+   * results.  A batch of more than one file is parsed and analyzed by a
+   * single compiler task; see {@link Source#parseAll(List)}.  Files
+   * that no insertion can target, judging by their package and top-level
+   * type names, are copied unchanged without being parsed; see {@link
+   * #copyIfUntargeted}.  The last three arguments are only used with
+   * --convert-jaifs, and may be null otherwise.
+   *
+   * @param batch the Java files into which to insert
+   * @param insertions the insertions specified by the annotation files
+   * @param annotationImports map from fully-qualified annotation name to the
+   *     imports it needs
+   * @param insertionIndex map from annotation file to insertion sources
+   * @param insertionOrigins map from insertion to its annotation file
+   * @param scenes map from annotation file to its filtered scene
+   * @return false if no further files should be processed
+   * @throws IOException if there is trouble reading a Java file
+   */
+  private static boolean processBatch(List<String> batch,
+      Insertions insertions, Map<String, Set<String>> annotationImports,
+      Map<String, Multimap<Insertion, Annotation>> insertionIndex,
+      Map<Insertion, String> insertionOrigins, Map<String, AScene> scenes)
+      throws IOException {
+    for (String javafilename : batch) {
       verb.debug("Processing %s%n", javafilename);
 
       File javafile = new File(javafilename);
@@ -687,348 +878,586 @@ public class Main {
           }
         }
       }
+    }
 
-      String fileSep = System.getProperty("file.separator");
-      String fileLineSep = System.getProperty("line.separator");
-      Source src;
-      // Get the source file, and use it to obtain parse trees.
+    // Read each file once; the text is both scanned and parsed.
+    List<String> targeted = new ArrayList<>(batch.size());
+    List<String> texts = new ArrayList<>(batch.size());
+    for (String javafilename : batch) {
+      byte[] bytes;
       try {
-        // fileLineSep is set here so that exceptions can be caught
-        fileLineSep = UtilPlume.inferLineSeparator(javafilename);
-        src = new Source(javafilename);
-        verb.debug("Parsed %s%n", javafilename);
-      } catch (Source.CompilerException e) {
-        e.printStackTrace();
-        return;
+        bytes = Files.readAllBytes(Paths.get(javafilename));
       } catch (IOException e) {
         e.printStackTrace();
-        return;
+        return false;
+      }
+      String text = new String(bytes, charset());
+      // JAIF conversion writes its results while processing the first
+      // parsed file, so it needs every file.
+      if (convert_jaifs
+          || !copyIfUntargeted(javafilename, bytes, text, insertions)) {
+        targeted.add(javafilename);
+        texts.add(text);
       }
+    }
+    batch = targeted;
+    if (batch.isEmpty()) {
+      return true;
+    }
 
-      // Imports required to resolve annotations (when abbreviate==true).
-      LinkedHashSet<String> imports = new LinkedHashSet<>();
-      int num_insertions = 0;
-      String pkg = "";
-
-      for (CompilationUnitTree cut : src.parse()) {
-        JCTree.JCCompilationUnit tree = (JCTree.JCCompilationUnit) cut;
-        ExpressionTree pkgExp = cut.getPackageName();
-        pkg = pkgExp == null ? "" : pkgExp.toString();
-
-        // Create a finder, and use it to get positions.
-        TreeFinder finder = new TreeFinder(tree);
-        SetMultimap<Pair<Integer, ASTPath>, Insertion> positions =
-            finder.getPositions(tree, insertions);
-        if (dbug.isEnabled()) {
-          dbug.debug("In annotator.Main:%n");
-          dbug.debug("positions (for %d insertions) = %s%n",
-                     insertions.size(), positions);
-        }
+    List<Source> sources;
+    // Set up the source files, and use them to obtain parse trees.
+    try {
+      if (batch.size() == 1) {
+        sources = Collections.singletonList(
+            new Source(batch.get(0), texts.get(0), charset()));
+      } else {
+        sources = Source.parseAll(batch, texts, charset());
+      }
+    } catch (Source.CompilerException e) {
+      e.printStackTrace();
+      return false;
+    } catch (IOException e) {
+      e.printStackTrace();
+      return false;
+    }
 
-        if (convert_jaifs) {
-          // With --convert-jaifs command-line option, the program is used only for JAIF conversion.
-          // Execute the following block and then skip the remainder of the loop.
-          Multimap<ASTRecord, Insertion> astInsertions = finder.getPaths();
-          for (Map.Entry<ASTRecord, Collection<Insertion>> entry :
-              astInsertions.asMap().entrySet()) {
-            ASTRecord rec = entry.getKey();
-            for (Insertion ins : entry.getValue()) {
-              if (ins.getCriteria().getASTPath() != null) { continue; }
-              String arg = insertionOrigins.get(ins);
-              AScene scene = scenes.get(arg);
-              Multimap<Insertion, Annotation> insertionSources =
-                  insertionIndex.get(arg);
-              // String text =
-              //  ins.getText(comments, abbreviate, false, 0, '\0');
-
-              // TODO: adjust for missing end of path (?)
-
-              if (insertionSources.containsKey(ins)) {
-                convertInsertion(pkg, tree, rec, ins, scene, insertionSources);
-              }
+    for (int i = 0; i < batch.size(); i++) {
+      if (!processFile(batch.get(i), sources.get(i), insertions,
+          annotationImports, insertionIndex, insertionOrigins, scenes)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Writes a Java file unchanged, just as {@link #processFile} would write
+   * it if it received no insertions, provided that a lexical scan of the
+   * file shows that no insertion can target it.  This saves parsing and
+   * attributing the file.  The file's bytes are written as they were read,
+   * so that the copy is exact even if they are not valid in the file's
+   * character encoding.
+   *
+   * @param javafilename the Java file to check
+   * @param bytes the contents of the Java file
+   * @param text the contents of the Java file, decoded
+   * @param insertions the insertions specified by the annotation files
+   * @return true if the file was copied, false if it must be processed
+   */
+  private static boolean copyIfUntargeted(String javafilename, byte[] bytes,
+      String text, Insertions insertions) {
+    File javafile = new File(javafilename);
+    List<String> names = TopLevelNames.scan(text);
+    if (names == null || names.isEmpty()) {
+      return false;
+    }
+    for (String name : names) {
+      if (insertions.mayApplyTo(name)) {
+        return false;
+      }
+    }
+    String pkg = "";
+    int i = names.get(0).lastIndexOf('.');
+    if (i >= 0) {
+      pkg = names.get(0).substring(0, i);
+    }
+    verb.debug("Skipping %s: no insertions for %s%n", javafilename, names);
+    filesSkipped.incrementAndGet();
+
+    File outfile = null;
+    try {
+      outfile = outputFile(javafile, new File(javafilename + ".unannotated"), pkg);
+      if (verbose) {
+        System.out.printf("Writing %s%n", outfile);
+      }
+      Files.write(outfile.toPath(), bytes);
+    } catch (IOException e) {
+      System.err.println("Problem while writing file " + outfile);
+      e.printStackTrace();
+      System.exit(1);
+    }
+    return true;
+  }
+
+  /**
+   * Inserts annotations into a single Java file and writes the result.
+   * The last three arguments are only used with --convert-jaifs, and may
+   * be null otherwise.
+   *
+   * <p>Matching and applying insertions changes the {@link Insertion}s
+   * themselves (see {@link #lockInsertions}), so the file is parsed and
+   * analyzed first, and the rest is done while holding the locks of the
+   * outer classes whose insertions the file can receive.
+   *
+   * @param javafilename the Java file into which to insert
+   * @param src the contents of the Java file, set up for parsing
+   * @param insertions the insertions specified by the annotation files
+   * @param annotationImports map from fully-qualified annotation name to the
+   *     imports it needs
+   * @param insertionIndex map from annotation file to insertion sources
+   * @param insertionOrigins map from insertion to its annotation file
+   * @param scenes map from annotation file to its filtered scene
+   * @return false if no further files should be processed
+   * @throws IOException if there is trouble reading the Java file
+   */
+  private static boolean processFile(String javafilename, Source src,
+      Insertions insertions, Map<String, Set<String>> annotationImports,
+      Map<String, Multimap<Insertion, Annotation>> insertionIndex,
+      Map<Insertion, String> insertionOrigins, Map<String, AScene> scenes)
+      throws IOException {
+    Set<CompilationUnitTree> cuts = src.parse();
+    List<Lock> locks = lockInsertions(cuts, insertions);
+    try {
+      return insertAndWrite(javafilename, src, cuts, insertions,
+          annotationImports, insertionIndex, insertionOrigins, scenes);
+    } finally {
+      for (int i = locks.size() - 1; i >= 0; i--) {
+        locks.get(i).unlock();
+      }
+    }
+  }
+
+  /**
+   * Acquires the locks guarding the insertions that the given compilation
+   * units can receive, and returns them in the order acquired.
+   *
+   * <p>The {@link Insertions} read from the annotation files are shared by
+   * all worker threads, but they are not read-only: organizing them for a
+   * class ({@link Insertions#forOuterClass}) adds criteria to them and
+   * marks them inserted, {@link TreeFinder} marks constructor insertions
+   * inserted, and the insertion loop of {@link #insertAndWrite} adjusts
+   * how each one is printed.  Insertions are grouped by outer class, so
+   * there is one lock per outer class, which also covers the declarations
+   * of the class and its inner classes.  Insertions that are neither
+   * within nor on a class, such as package annotations, may apply to any
+   * file, so while there are any, their lock is taken for every file.
+   * Locks are taken in name order, so workers cannot deadlock.
+   *
+   * @param cuts the compilation units of a Java file
+   * @param insertions the insertions specified by the annotation files
+   * @return the acquired locks
+   */
+  private static List<Lock> lockInsertions(Set<CompilationUnitTree> cuts,
+      Insertions insertions) {
+    Set<String> names = new TreeSet<>();
+    if (insertions.hasOuterClass("")) {
+      names.add("");
+    }
+    for (CompilationUnitTree cut : cuts) {
+      for (JCTree decl : ((JCTree.JCCompilationUnit) cut).getTypeDecls()) {
+        if (decl.getTag() == JCTree.Tag.CLASSDEF) {
+          JCTree.JCClassDecl classDecl = (JCTree.JCClassDecl) decl;
+          if (classDecl.sym != null) {
+            String name = classDecl.sym.className();
+            if (insertions.hasOuterClass(name)) {
+              names.add(name);
             }
           }
-          continue;
         }
+      }
+    }
+    List<Lock> locks = new ArrayList<>(names.size());
+    for (String name : names) {
+      Lock lock = insertionLocks.get(name);
+      if (lock == null) {
+        insertionLocks.putIfAbsent(name, new ReentrantLock());
+        lock = insertionLocks.get(name);
+      }
+      lock.lock();
+      locks.add(lock);
+    }
+    return locks;
+  }
 
-        // Apply the positions to the source file.
-        if (both.isEnabled()) {
-          System.err.printf(
-              "getPositions returned %d positions in tree for %s%n",
-              positions.size(), javafilename);
+  /**
+   * Inserts annotations into the compilation units of a Java file, which
+   * have already been parsed, and writes the result; see {@link
+   * #processFile}.
+   *
+   * @param javafilename the Java file into which to insert
+   * @param src the contents of the Java file
+   * @param cuts the compilation units of the Java file
+   * @param insertions the insertions specified by the annotation files
+   * @param annotationImports map from fully-qualified annotation name to the
+   *     imports it needs
+   * @param insertionIndex map from annotation file to insertion sources
+   * @param insertionOrigins map from insertion to its annotation file
+   * @param scenes map from annotation file to its filtered scene
+   * @return false if no further files should be processed
+   * @throws IOException if there is trouble reading the Java file
+   */
+  private static boolean insertAndWrite(String javafilename, Source src,
+      Set<CompilationUnitTree> cuts, Insertions insertions,
+      Map<String, Set<String>> annotationImports,
+      Map<String, Multimap<Insertion, Annotation>> insertionIndex,
+      Map<Insertion, String> insertionOrigins, Map<String, AScene> scenes)
+      throws IOException {
+    File javafile = new File(javafilename);
+    File unannotated = new File(javafilename + ".unannotated");
+
+    String fileLineSep = src.getLineSeparator();
+    verb.debug("Parsed %s%n", javafilename);
+
+    // Imports required to resolve annotations (when abbreviate==true).
+    LinkedHashSet<String> imports = new LinkedHashSet<>();
+    int num_insertions = 0;
+    String pkg = "";
+
+    for (CompilationUnitTree cut : cuts) {
+      JCTree.JCCompilationUnit tree = (JCTree.JCCompilationUnit) cut;
+      ExpressionTree pkgExp = cut.getPackageName();
+      pkg = pkgExp == null ? "" : pkgExp.toString();
+
+      // Create a finder, and use it to get positions.
+      TreeFinder finder = new TreeFinder(tree);
+      SetMultimap<Pair<Integer, ASTPath>, Insertion> positions =
+          finder.getPositions(tree, insertions);
+      verb.debug("Scanned %s: %d nodes visited, %d criteria evaluated, %d matches%n",
+          javafilename, finder.getNodesVisited(), finder.getCriteriaEvaluated(),
+          finder.getMatches());
+      if (dbug.isEnabled()) {
+        dbug.debug("In annotator.Main:%n");
+        dbug.debug("positions (for %d insertions) = %s%n",
+                   insertions.size(), positions);
+      }
+
+      if (convert_jaifs) {
+        // With --convert-jaifs command-line option, the program is used only for JAIF conversion.
+        // Execute the following block and then skip the remainder of the loop.
+        Multimap<ASTRecord, Insertion> astInsertions = finder.getPaths();
+        for (Map.Entry<ASTRecord, Collection<Insertion>> entry :
+            astInsertions.asMap().entrySet()) {
+          ASTRecord rec = entry.getKey();
+          for (Insertion ins : entry.getValue()) {
+            if (ins.getCriteria().getASTPath() != null) { continue; }
+            String arg = insertionOrigins.get(ins);
+            AScene scene = scenes.get(arg);
+            Multimap<Insertion, Annotation> insertionSources =
+                insertionIndex.get(arg);
+            // String text =
+            //  ins.getText(comments, abbreviate, false, 0, '\0');
+
+            // TODO: adjust for missing end of path (?)
+
+            if (insertionSources.containsKey(ins)) {
+              convertInsertion(pkg, tree, rec, ins, scene, insertionSources);
+            }
+          }
         }
+        continue;
+      }
+
+      // Apply the positions to the source file.
+      if (both.isEnabled()) {
+        System.err.printf(
+            "getPositions returned %d positions in tree for %s%n",
+            positions.size(), javafilename);
+      }
 
-        Set<Pair<Integer, ASTPath>> positionKeysUnsorted =
-            positions.keySet();
-        Set<Pair<Integer, ASTPath>> positionKeysSorted =
-          new TreeSet<Pair<Integer, ASTPath>>(
-              new Comparator<Pair<Integer, ASTPath>>() {
-                @Override
-                public int compare(Pair<Integer, ASTPath> p1,
-                    Pair<Integer, ASTPath> p2) {
-                  int c = Integer.compare(p2.a, p1.a);
-                  if (c != 0) {
-                    return c;
-                  }
-                  return p2.b == null ? (p1.b == null ? 0 : -1)
-                    : (p1.b == null ? 1 : p2.b.compareTo(p1.b));
+      Set<Pair<Integer, ASTPath>> positionKeysUnsorted =
+          positions.keySet();
+      Set<Pair<Integer, ASTPath>> positionKeysSorted =
+        new TreeSet<Pair<Integer, ASTPath>>(
+            new Comparator<Pair<Integer, ASTPath>>() {
+              @Override
+              public int compare(Pair<Integer, ASTPath> p1,
+                  Pair<Integer, ASTPath> p2) {
+                int c = Integer.compare(p2.a, p1.a);
+                if (c != 0) {
+                  return c;
                 }
-              });
-        positionKeysSorted.addAll(positionKeysUnsorted);
-        for (Pair<Integer, ASTPath> pair : positionKeysSorted) {
-          boolean receiverInserted = false;
-          boolean newInserted = false;
-          boolean constructorInserted = false;
-          Set<String> seen = new TreeSet<>();
-          List<Insertion> toInsertList = new ArrayList<>(positions.get(pair));
-          Collections.reverse(toInsertList);
-          dbug.debug("insertion pos: %d%n", pair.a);
-          assert pair.a >= 0
-            : "pos is negative: " + pair.a + " " + toInsertList.get(0) + " " + javafilename;
-          for (Insertion iToInsert : toInsertList) {
-            // Possibly add whitespace after the insertion
-            String trailingWhitespace = "";
-            boolean gotSeparateLine = false;
-            int pos = pair.a;  // reset each iteration in case of dyn adjustment
-            if (iToInsert.isSeparateLine()) {
-              // System.out.printf("isSeparateLine=true for insertion at pos %d: %s%n", pos, iToInsert);
-              int indentation = 0;
-              while ((pos - indentation != 0)
-                     // horizontal whitespace
-                     && (src.charAt(pos-indentation-1) == ' '
-                         || src.charAt(pos-indentation-1) == '\t')) {
-                // System.out.printf("src.charAt(pos-indentation-1 == %d-%d-1)='%s'%n",
-                //                   pos, indentation, src.charAt(pos-indentation-1));
-                indentation++;
-              }
-              if ((pos - indentation == 0)
-                  // horizontal whitespace
-                  || (src.charAt(pos-indentation-1) == '\f'
-                      || src.charAt(pos-indentation-1) == '\n'
-                      || src.charAt(pos-indentation-1) == '\r')) {
-                trailingWhitespace = fileLineSep + src.substring(pos-indentation, pos);
-                gotSeparateLine = true;
+                return p2.b == null ? (p1.b == null ? 0 : -1)
+                  : (p1.b == null ? 1 : p2.b.compareTo(p1.b));
               }
+            });
+      positionKeysSorted.addAll(positionKeysUnsorted);
+      for (Pair<Integer, ASTPath> pair : positionKeysSorted) {
+        boolean receiverInserted = false;
+        boolean newInserted = false;
+        boolean constructorInserted = false;
+        Set<String> seen = new TreeSet<>();
+        List<Insertion> toInsertList = new ArrayList<>(positions.get(pair));
+        Collections.reverse(toInsertList);
+        dbug.debug("insertion pos: %d%n", pair.a);
+        assert pair.a >= 0
+          : "pos is negative: " + pair.a + " " + toInsertList.get(0) + " " + javafilename;
+        for (Insertion iToInsert : toInsertList) {
+          // Possibly add whitespace after the insertion
+          String trailingWhitespace = "";
+          boolean gotSeparateLine = false;
+          int pos = pair.a;  // reset each iteration in case of dyn adjustment
+          if (iToInsert.isSeparateLine()) {
+            // System.out.printf("isSeparateLine=true for insertion at pos %d: %s%n", pos, iToInsert);
+            int indentation = 0;
+            while ((pos - indentation != 0)
+                   // horizontal whitespace
+                   && (src.charAt(pos-indentation-1) == ' '
+                       || src.charAt(pos-indentation-1) == '\t')) {
+              // System.out.printf("src.charAt(pos-indentation-1 == %d-%d-1)='%s'%n",
+              //                   pos, indentation, src.charAt(pos-indentation-1));
+              indentation++;
             }
-
-            char precedingChar;
-            if (pos != 0) {
-              precedingChar = src.charAt(pos - 1);
-            } else {
-              precedingChar = '\0';
+            if ((pos - indentation == 0)
+                // horizontal whitespace
+                || (src.charAt(pos-indentation-1) == '\f'
+                    || src.charAt(pos-indentation-1) == '\n'
+                    || src.charAt(pos-indentation-1) == '\r')) {
+              trailingWhitespace = fileLineSep + src.substring(pos-indentation, pos);
+              gotSeparateLine = true;
             }
+          }
 
-            if (iToInsert.getKind() == Insertion.Kind.ANNOTATION) {
-              AnnotationInsertion ai = (AnnotationInsertion) iToInsert;
-              if (ai.isGenerateBound()) {  // avoid multiple ampersands
-                try {
-                  String s = src.substring(pos, pos+9);
-                  if ("Object & ".equals(s)) {
-                    ai.setGenerateBound(false);
-                    precedingChar = '.';  // suppress leading space
-                  }
-                } catch (StringIndexOutOfBoundsException e) {}
-              }
-              if (ai.isGenerateExtends()) {  // avoid multiple "extends"
-                try {
-                  String s = src.substring(pos, pos+9);
-                  if (" extends ".equals(s)) {
-                    ai.setGenerateExtends(false);
-                    pos += 8;
-                  }
-                } catch (StringIndexOutOfBoundsException e) {}
-              }
-            } else if (iToInsert.getKind() == Insertion.Kind.CAST) {
-                ((CastInsertion) iToInsert)
-                        .setOnArrayLiteral(src.charAt(pos) == '{');
-            } else if (iToInsert.getKind() == Insertion.Kind.RECEIVER) {
-              ReceiverInsertion ri = (ReceiverInsertion) iToInsert;
-              ri.setAnnotationsOnly(receiverInserted);
-              receiverInserted = true;
-            } else if (iToInsert.getKind() == Insertion.Kind.NEW) {
-              NewInsertion ni = (NewInsertion) iToInsert;
-              ni.setAnnotationsOnly(newInserted);
-              newInserted = true;
-            } else if (iToInsert.getKind() == Insertion.Kind.CONSTRUCTOR) {
-              ConstructorInsertion ci = (ConstructorInsertion) iToInsert;
-              if (constructorInserted) { ci.setAnnotationsOnly(true); }
-              constructorInserted = true;
-            }
+          char precedingChar;
+          if (pos != 0) {
+            precedingChar = src.charAt(pos - 1);
+          } else {
+            precedingChar = '\0';
+          }
 
-            String toInsert = iToInsert.getText(comments, abbreviate,
-                gotSeparateLine, pos, precedingChar) + trailingWhitespace;
-            // eliminate duplicates
-            if (seen.contains(toInsert)) {
-              continue;
+          if (iToInsert.getKind() == Insertion.Kind.ANNOTATION) {
+            AnnotationInsertion ai = (AnnotationInsertion) iToInsert;
+            if (ai.isGenerateBound()) {  // avoid multiple ampersands
+              try {
+                String s = src.substring(pos, pos+9);
+                if ("Object & ".equals(s)) {
+                  ai.setGenerateBound(false);
+                  precedingChar = '.';  // suppress leading space
+                }
+              } catch (StringIndexOutOfBoundsException e) {}
             }
-            seen.add(toInsert);
-
-            // If it's an annotation and already there, don't re-insert.  This is a hack!
-            // Also, I think this is already checked when constructing the
-            // insertions.
-            if (toInsert.startsWith("@")) {
-            int precedingTextPos = pos-toInsert.length()-1;
-            if (precedingTextPos >= 0) {
-              String precedingTextPlusChar
-                = src.getString().substring(precedingTextPos, pos);
-              if (toInsert.equals(
-                      precedingTextPlusChar.substring(0, toInsert.length()))
-                  || toInsert.equals(precedingTextPlusChar.substring(1))) {
-                dbug.debug(
-                    "Inserting '%s' at %d in code of length %d with preceding text '%s'%n",
-                    toInsert, pos, src.getString().length(),
-                    precedingTextPlusChar);
-                dbug.debug("Already present, skipping%n");
-                continue;
-              }
+            if (ai.isGenerateExtends()) {  // avoid multiple "extends"
+              try {
+                String s = src.substring(pos, pos+9);
+                if (" extends ".equals(s)) {
+                  ai.setGenerateExtends(false);
+                  pos += 8;
+                }
+              } catch (StringIndexOutOfBoundsException e) {}
             }
-            int followingTextEndPos = pos+toInsert.length();
-            if (followingTextEndPos < src.getString().length()) {
-              String followingText
-                  = src.getString().substring(pos, followingTextEndPos);
-              dbug.debug("followingText=\"%s\"%n", followingText);
-              dbug.debug("toInsert=\"%s\"%n", toInsert);
-              // toInsertNoWs does not contain the trailing whitespace.
-              String toInsertNoWs = toInsert.substring(0, toInsert.length()-1);
-              if (followingText.equals(toInsert)
-                  || (followingText.substring(0, followingText.length()-1)
-                      .equals(toInsertNoWs)
-                      // Untested.  Is there an off-by-one error here?
-                      && Character.isWhitespace(src.getString().charAt(followingTextEndPos)))) {
-                dbug.debug("Already present, skipping %s%n", toInsertNoWs);
-                continue;
-              }
+          } else if (iToInsert.getKind() == Insertion.Kind.CAST) {
+              ((CastInsertion) iToInsert)
+                      .setOnArrayLiteral(src.charAt(pos) == '{');
+          } else if (iToInsert.getKind() == Insertion.Kind.RECEIVER) {
+            ReceiverInsertion ri = (ReceiverInsertion) iToInsert;
+            ri.setAnnotationsOnly(receiverInserted);
+            receiverInserted = true;
+          } else if (iToInsert.getKind() == Insertion.Kind.NEW) {
+            NewInsertion ni = (NewInsertion) iToInsert;
+            ni.setAnnotationsOnly(newInserted);
+            newInserted = true;
+          } else if (iToInsert.getKind() == Insertion.Kind.CONSTRUCTOR) {
+            ConstructorInsertion ci = (ConstructorInsertion) iToInsert;
+            if (constructorInserted) { ci.setAnnotationsOnly(true); }
+            constructorInserted = true;
+          }
+
+          String toInsert = iToInsert.getText(comments, abbreviate,
+              gotSeparateLine, pos, precedingChar) + trailingWhitespace;
+          // eliminate duplicates
+          if (seen.contains(toInsert)) {
+            continue;
+          }
+          seen.add(toInsert);
+
+          // If it's an annotation and already there, don't re-insert.  This is a hack!
+          // Also, I think this is already checked when constructing the
+          // insertions.
+          if (toInsert.startsWith("@")) {
+          int precedingTextPos = pos-toInsert.length()-1;
+          if (precedingTextPos >= 0) {
+            String precedingTextPlusChar
+              = src.substring(precedingTextPos, pos);
+            if (toInsert.equals(
+                    precedingTextPlusChar.substring(0, toInsert.length()))
+                || toInsert.equals(precedingTextPlusChar.substring(1))) {
+              dbug.debug(
+                  "Inserting '%s' at %d in code of length %d with preceding text '%s'%n",
+                  toInsert, pos, src.length(),
+                  precedingTextPlusChar);
+              dbug.debug("Already present, skipping%n");
+              continue;
             }
+          }
+          int followingTextEndPos = pos+toInsert.length();
+          if (followingTextEndPos < src.length()) {
+            String followingText
+                = src.substring(pos, followingTextEndPos);
+            dbug.debug("followingText=\"%s\"%n", followingText);
+            dbug.debug("toInsert=\"%s\"%n", toInsert);
+            // toInsertNoWs does not contain the trailing whitespace.
+            String toInsertNoWs = toInsert.substring(0, toInsert.length()-1);
+            if (followingText.equals(toInsert)
+                || (followingText.substring(0, followingText.length()-1)
+                    .equals(toInsertNoWs)
+                    // Untested.  Is there an off-by-one error here?
+                    && Character.isWhitespace(src.charAt(followingTextEndPos)))) {
+              dbug.debug("Already present, skipping %s%n", toInsertNoWs);
+              continue;
             }
+          }
+          }
 
-            // TODO: Neither the above hack nor this check should be
-            // necessary.  Find out why re-insertions still occur and
-            // fix properly.
-            if (iToInsert.isInserted()) { continue; }
-            src.insert(pos, toInsert);
-            if (verbose && !debug) {
-              System.out.print(".");
-              num_insertions++;
-              if ((num_insertions % 50) == 0) {
-                System.out.println();   // terminate the line that contains dots
-              }
+          // TODO: Neither the above hack nor this check should be
+          // necessary.  Find out why re-insertions still occur and
+          // fix properly.
+          if (iToInsert.isInserted()) { continue; }
+          src.insert(pos, toInsert);
+          if (verbose && !debug) {
+            System.out.print(".");
+            num_insertions++;
+            if ((num_insertions % 50) == 0) {
+              System.out.println();   // terminate the line that contains dots
             }
+          }
+          if (dbug.isEnabled()) {
             dbug.debug("Post-insertion source: %n" + src.getString());
+          }
 
-            Collection<String> packageNames = nonJavaLangClasses(iToInsert.getPackageNames());
-            if (!packageNames.isEmpty()) {
-              dbug.debug("Need import %s%n  due to insertion %s%n",
-                  packageNames, toInsert);
-              imports.addAll(packageNames);
-            }
-            if (iToInsert instanceof AnnotationInsertion) {
-              AnnotationInsertion annoToInsert = (AnnotationInsertion) iToInsert;
-              Set<String> annoImports = annotationImports.get(annoToInsert.getAnnotationFullyQualifiedName());
-              if (annoImports != null) {
-                imports.addAll(annoImports);
-              }
+          Collection<String> packageNames = nonJavaLangClasses(iToInsert.getPackageNames());
+          if (!packageNames.isEmpty()) {
+            dbug.debug("Need import %s%n  due to insertion %s%n",
+                packageNames, toInsert);
+            imports.addAll(packageNames);
+          }
+          if (iToInsert instanceof AnnotationInsertion) {
+            AnnotationInsertion annoToInsert = (AnnotationInsertion) iToInsert;
+            Set<String> annoImports = annotationImports.get(annoToInsert.getAnnotationFullyQualifiedName());
+            if (annoImports != null) {
+              imports.addAll(annoImports);
             }
           }
         }
       }
+    }
 
-      if (convert_jaifs) {
-        for (Map.Entry<String, AScene> entry : scenes.entrySet()) {
-          String filename = entry.getKey();
-          AScene scene = entry.getValue();
-          try {
-            IndexFileWriter.write(scene, filename + ".converted");
-          } catch (DefException e) {
-            System.err.println(filename + ": " + " format error in conversion");
-            if (print_error_stack) {
-              e.printStackTrace();
-            }
+    if (convert_jaifs) {
+      for (Map.Entry<String, AScene> entry : scenes.entrySet()) {
+        String filename = entry.getKey();
+        AScene scene = entry.getValue();
+        try {
+          IndexFileWriter.write(scene, filename + ".converted");
+        } catch (DefException e) {
+          System.err.println(filename + ": " + " format error in conversion");
+          if (print_error_stack) {
+            e.printStackTrace();
           }
         }
-        return;  // done with conversion
       }
+      return false;  // done with conversion
+    }
 
-      if (dbug.isEnabled()) {
-        dbug.debug("%d imports to insert%n", imports.size());
-        for (String classname : imports) {
-          dbug.debug("  %s%n", classname);
-        }
+    if (dbug.isEnabled()) {
+      dbug.debug("%d imports to insert%n", imports.size());
+      for (String classname : imports) {
+        dbug.debug("  %s%n", classname);
       }
+    }
 
-      // insert import statements
-      {
-        Pattern importPattern = Pattern.compile("(?m)^import\\b");
-        Pattern packagePattern = Pattern.compile("(?m)^package\\b.*;(\\n|\\r\\n?)");
-        int importIndex = 0;      // default: beginning of file
-        String srcString = src.getString();
-        Matcher m = importPattern.matcher(srcString);
-        Set<String> inSource = new TreeSet<>();
-        if (m.find()) {
-          importIndex = m.start();
-          do {
-            int i = m.start();
-            int j = srcString.indexOf(System.lineSeparator(), i) + 1;
-            if (j <= 0) {
-              j = srcString.length();
-            }
-            String s = srcString.substring(i, j);
-            inSource.add(s);
-          } while (m.find());
-        } else {
-          // Debug.info("Didn't find import in " + srcString);
-          m = packagePattern.matcher(srcString);
-          if (m.find()) {
-            importIndex = m.end();
+    // insert import statements
+    {
+      Pattern importPattern = Pattern.compile("(?m)^import\\b");
+      Pattern packagePattern = Pattern.compile("(?m)^package\\b.*;(\\n|\\r\\n?)");
+      int importIndex = 0;      // default: beginning of file
+      String srcString = src.getString();
+      Matcher m = importPattern.matcher(srcString);
+      Set<String> inSource = new TreeSet<>();
+      if (m.find()) {
+        importIndex = m.start();
+        do {
+          int i = m.start();
+          int j = srcString.indexOf(System.lineSeparator(), i) + 1;
+          if (j <= 0) {
+            j = srcString.length();
           }
+          String s = srcString.substring(i, j);
+          inSource.add(s);
+        } while (m.find());
+      } else {
+        // Debug.info("Didn't find import in " + srcString);
+        m = packagePattern.matcher(srcString);
+        if (m.find()) {
+          importIndex = m.end();
         }
-        for (String classname : imports) {
-          String toInsert = "import " + classname + ";" + fileLineSep;
-          if (!inSource.contains(toInsert)) {
-            inSource.add(toInsert);
-            src.insert(importIndex, toInsert);
-            importIndex += toInsert.length();
-          }
+      }
+      for (String classname : imports) {
+        String toInsert = "import " + classname + ";" + fileLineSep;
+        if (!inSource.contains(toInsert)) {
+          inSource.add(toInsert);
+          src.insert(importIndex, toInsert);
+          importIndex += toInsert.length();
         }
       }
+    }
 
-      // Write the source file.
-      File outfile = null;
-      try {
-        if (in_place) {
-          outfile = javafile;
-          if (verbose) {
-            System.out.printf("Renaming %s to %s%n", javafile, unannotated);
-          }
-          boolean success = javafile.renameTo(unannotated);
-          if (! success) {
-            throw new Error(String.format("Failed renaming %s to %s",
-                                          javafile, unannotated));
-          }
-        } else {
-          if (pkg.isEmpty()) {
-            outfile = new File(outdir, javafile.getName());
-          } else {
-            String[] pkgPath = pkg.split("\\.");
-            StringBuilder sb = new StringBuilder(outdir);
-            for (int i = 0 ; i < pkgPath.length ; i++) {
-              sb.append(fileSep).append(pkgPath[i]);
-            }
-            outfile = new File(sb.toString(), javafile.getName());
-          }
-          outfile.getParentFile().mkdirs();
-        }
-        OutputStream output = new FileOutputStream(outfile);
-        if (verbose) {
-          System.out.printf("Writing %s%n", outfile);
+    // Write the source file.
+    File outfile = null;
+    try {
+      outfile = outputFile(javafile, unannotated, pkg);
+      OutputStream output = new FileOutputStream(outfile);
+      if (verbose) {
+        System.out.printf("Writing %s%n", outfile);
+      }
+      src.write(output);
+      output.close();
+    } catch (IOException e) {
+      System.err.println("Problem while writing file " + outfile);
+      e.printStackTrace();
+      System.exit(1);
+    }
+    return true;
+  }
+
+  /**
+   * Returns the file to which the annotated version of a Java file is
+   * written, and prepares for writing it: with --in-place, the Java file
+   * itself, after it has been renamed to {@code unannotated}; otherwise,
+   * the file for the given package in the output directory, whose parent
+   * directories are created.
+   *
+   * @param javafile the Java file into which to insert
+   * @param unannotated where the original of the Java file is kept with
+   *     --in-place
+   * @param pkg the package of the Java file, or "" if none
+   * @return the file to write
+   */
+  private static File outputFile(File javafile, File unannotated, String pkg) {
+    File outfile;
+    if (in_place) {
+      outfile = javafile;
+      if (verbose) {
+        System.out.printf("Renaming %s to %s%n", javafile, unannotated);
+      }
+      boolean success = javafile.renameTo(unannotated);
+      if (! success) {
+        throw new Error(String.format("Failed renaming %s to %s",
+                                      javafile, unannotated));
+      }
+    } else {
+      if (pkg.isEmpty()) {
+        outfile = new File(outdir, javafile.getName());
+      } else {
+        String fileSep = System.getProperty("file.separator");
+        String[] pkgPath = pkg.split("\\.");
+        StringBuilder sb = new StringBuilder(outdir);
+        for (int i = 0 ; i < pkgPath.length ; i++) {
+          sb.append(fileSep).append(pkgPath[i]);
         }
-        src.write(output);
-        output.close();
-      } catch (IOException e) {
-        System.err.println("Problem while writing file " + outfile);
-        e.printStackTrace();
-        System.exit(1);
+        outfile = new File(sb.toString(), javafile.getName());
       }
+      outfile.getParentFile().mkdirs();
     }
+    return outfile;
+  }
+
+  /**
+   * Returns the charset given by {@link #encoding}, or the platform's
+   * default charset if there is none.
+   *
+   * @return the charset of the Java files
+   */
+  private static Charset charset() {
+    return encoding == null ? Charset.defaultCharset() : Charset.forName(encoding);
   }
 
   /** A regular expression for classes in the java.lang package. */
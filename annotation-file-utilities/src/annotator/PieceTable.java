@@ -0,0 +1,248 @@
+package annotator;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Random;
+
+/**
+ * The text of a source file, supporting cheap insertions at arbitrary
+ * offsets.  The text is a sequence of pieces, each of which is a range of
+ * either the original text or an append-only buffer holding all inserted
+ * text; no character is ever moved once it is stored.  The pieces are the
+ * nodes of a treap ordered by position and augmented with subtree
+ * lengths, so that inserting and looking up a character take expected
+ * O(log p) time for p pieces, and reading a range of length k takes
+ * expected O(log p + k) time.
+ */
+final class PieceTable implements CharSequence {
+
+  /** A range of one of the two buffers, and the root of a subtree. */
+  private static final class Piece {
+    /** The buffer that holds this piece's text. */
+    final CharSequence buffer;
+    /** Offset in {@link #buffer} at which this piece begins. */
+    final int start;
+    /** Number of characters in this piece. */
+    int length;
+    /** Total number of characters in the subtree rooted here. */
+    int size;
+    /** Heap priority of this node in the treap. */
+    final int priority;
+    Piece left;
+    Piece right;
+
+    Piece(CharSequence buffer, int start, int length, int priority) {
+      this.buffer = buffer;
+      this.start = start;
+      this.length = length;
+      this.size = length;
+      this.priority = priority;
+    }
+
+    void update() {
+      size = size(left) + length + size(right);
+    }
+  }
+
+  /** The text the table was created with. */
+  private final String original;
+  /** The concatenation of all inserted text; only ever appended to. */
+  private final StringBuilder added = new StringBuilder();
+  /** Source of treap priorities. */
+  private final Random random = new Random(0);
+  /** Root of the treap of pieces, or null if the text is empty. */
+  private Piece root;
+
+  /**
+   * Creates a piece table holding the given text.
+   *
+   * @param text the initial text
+   */
+  PieceTable(String text) {
+    original = text;
+    root = text.isEmpty() ? null : newPiece(original, 0, text.length());
+  }
+
+  private Piece newPiece(CharSequence buffer, int start, int length) {
+    return new Piece(buffer, start, length, random.nextInt());
+  }
+
+  private static int size(Piece p) {
+    return p == null ? 0 : p.size;
+  }
+
+  @Override
+  public int length() {
+    return size(root);
+  }
+
+  /**
+   * Inserts text at the given offset.
+   *
+   * @param offset where to insert; between 0 and {@link #length()}
+   * @param str the text to insert
+   * @throws StringIndexOutOfBoundsException if the offset is out of range
+   */
+  void insert(int offset, String str) {
+    if (offset < 0 || offset > length()) {
+      throw new StringIndexOutOfBoundsException("offset " + offset
+          + ", length " + length());
+    }
+    if (str.isEmpty()) {
+      return;
+    }
+    int start = added.length();
+    added.append(str);
+    Piece[] halves = split(root, offset);
+    root = merge(merge(halves[0], newPiece(added, start, str.length())),
+        halves[1]);
+  }
+
+  /**
+   * Splits a subtree into the pieces holding its first {@code k}
+   * characters and the pieces holding the rest, dividing a piece in two
+   * if necessary.
+   */
+  private Piece[] split(Piece p, int k) {
+    if (p == null) {
+      return new Piece[] {null, null};
+    }
+    int leftSize = size(p.left);
+    Piece[] halves;
+    if (k <= leftSize) {
+      halves = split(p.left, k);
+      p.left = halves[1];
+      p.update();
+      halves[1] = p;
+    } else if (k >= leftSize + p.length) {
+      halves = split(p.right, k - leftSize - p.length);
+      p.right = halves[0];
+      p.update();
+      halves[0] = p;
+    } else {
+      int cut = k - leftSize;
+      Piece tail = newPiece(p.buffer, p.start + cut, p.length - cut);
+      halves = new Piece[] {p, merge(tail, p.right)};
+      p.length = cut;
+      p.right = null;
+      p.update();
+    }
+    return halves;
+  }
+
+  /** Concatenates two subtrees. */
+  private static Piece merge(Piece a, Piece b) {
+    if (a == null) {
+      return b;
+    }
+    if (b == null) {
+      return a;
+    }
+    if (a.priority > b.priority) {
+      a.right = merge(a.right, b);
+      a.update();
+      return a;
+    } else {
+      b.left = merge(a, b.left);
+      b.update();
+      return b;
+    }
+  }
+
+  @Override
+  public char charAt(int index) {
+    if (index < 0 || index >= length()) {
+      throw new StringIndexOutOfBoundsException(index);
+    }
+    Piece p = root;
+    while (true) {
+      int leftSize = size(p.left);
+      if (index < leftSize) {
+        p = p.left;
+      } else if (index < leftSize + p.length) {
+        return p.buffer.charAt(p.start + index - leftSize);
+      } else {
+        index -= leftSize + p.length;
+        p = p.right;
+      }
+    }
+  }
+
+  /**
+   * Returns the text between the given offsets, reading only the pieces
+   * that overlap that range.
+   *
+   * @param start the beginning offset, inclusive
+   * @param end the ending offset, exclusive
+   * @return the text between {@code start} and {@code end}
+   * @throws StringIndexOutOfBoundsException if the range is invalid
+   */
+  String substring(int start, int end) {
+    if (start < 0 || end > length() || start > end) {
+      throw new StringIndexOutOfBoundsException("start " + start + ", end "
+          + end + ", length " + length());
+    }
+    StringBuilder sb = new StringBuilder(end - start);
+    appendRange(root, start, end, sb);
+    return sb.toString();
+  }
+
+  /** Appends the characters of subtree {@code p} in [start, end) to sb. */
+  private static void appendRange(Piece p, int start, int end,
+      StringBuilder sb) {
+    if (p == null || start >= end) {
+      return;
+    }
+    int leftSize = size(p.left);
+    if (start < leftSize) {
+      appendRange(p.left, start, Math.min(end, leftSize), sb);
+    }
+    int from = Math.max(start - leftSize, 0);
+    int to = Math.min(end - leftSize, p.length);
+    if (from < to) {
+      sb.append(p.buffer, p.start + from, p.start + to);
+    }
+    int rightStart = leftSize + p.length;
+    if (end > rightStart) {
+      appendRange(p.right, Math.max(start - rightStart, 0),
+          end - rightStart, sb);
+    }
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    return substring(start, end);
+  }
+
+  /**
+   * Writes the text, piece by piece, without building it as one string.
+   *
+   * @param out where to write the text
+   * @throws IOException if writing fails
+   */
+  void writeTo(Writer out) throws IOException {
+    writeTo(root, out, new char[1024]);
+  }
+
+  private void writeTo(Piece p, Writer out, char[] chunk) throws IOException {
+    if (p == null) {
+      return;
+    }
+    writeTo(p.left, out, chunk);
+    if (p.buffer == original) {
+      out.write(original, p.start, p.length);
+    } else {
+      for (int i = 0; i < p.length; i += chunk.length) {
+        int n = Math.min(chunk.length, p.length - i);
+        added.getChars(p.start + i, p.start + i + n, chunk, 0);
+        out.write(chunk, 0, n);
+      }
+    }
+    writeTo(p.right, out, chunk);
+  }
+
+  @Override
+  public String toString() {
+    return substring(0, length());
+  }
+}
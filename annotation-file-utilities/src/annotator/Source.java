@@ -1,6 +1,10 @@
 package annotator;
 
 import java.io.*;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.*;
 
 import javax.tools.*;
@@ -22,10 +26,18 @@ public final class Source {
     private JavaCompiler compiler;
     private StandardJavaFileManager fileManager;
     private JavacTask task;
-    private StringBuilder source;
+    private PieceTable source;
     private DiagnosticCollector<JavaFileObject> diagnostics;
     private String path;
     private Types types;
+    /** The character encoding of the file. */
+    private Charset charset;
+    /** The line separator of the original file. */
+    private String lineSeparator;
+    /** The file's original text, as given to the compiler. */
+    private JavaFileObject fileObject;
+    /** The compilation units of a file parsed as part of a batch, or null. */
+    private Set<CompilationUnitTree> compUnits;
 
     /**
      * Signifies that a problem has occurred with the compiler that produces
@@ -41,29 +53,202 @@ public final class Source {
     }
 
     /**
-     * Sets up a compiler for parsing the given Java source file.
+     * Sets up a compiler for parsing the given Java source file, which is
+     * read using the platform's default charset.
      *
      * @throws CompilerException if the input file couldn't be read
      */
     public Source(String src) throws CompilerException, IOException {
+        this(src, Charset.defaultCharset());
+    }
+
+    /**
+     * Sets up a compiler for parsing the given Java source file.
+     *
+     * @param src the Java source file
+     * @param charset the character encoding of the file, used both to read
+     *     it and to write the modified file
+     * @throws CompilerException if the input file couldn't be read
+     */
+    public Source(String src, Charset charset)
+            throws CompilerException, IOException {
+        this(src, readText(src, charset), charset);
+    }
+
+    /**
+     * Sets up a compiler for parsing the given Java source file, whose
+     * contents have already been read.
+     *
+     * @param src the Java source file
+     * @param text the contents of the file
+     * @param charset the character encoding of the file, used to write the
+     *     modified file
+     * @throws CompilerException if the compiler could not be set up
+     */
+    public Source(String src, String text, Charset charset)
+            throws CompilerException, IOException {
+
+        setSource(src, text, charset);
 
         // Get the JSR-199 compiler.
-        this.compiler = javax.tools.ToolProvider.getSystemJavaCompiler();
-        if (compiler == null) {
-            throw new CompilerException("could not get compiler instance");
-        }
+        this.compiler = getCompiler();
 
         diagnostics = new DiagnosticCollector<JavaFileObject>();
 
         // Get the file manager for locating input files.
-        this.fileManager = compiler.getStandardFileManager(diagnostics, null, null);
+        this.fileManager = getFileManager(compiler, diagnostics);
+
+        // The compiler reads the text that was just loaded, not the file.
+        Iterable<? extends JavaFileObject> fileObjs =
+            Collections.singletonList(fileObject);
+
+        this.task = createTask(compiler, fileManager, diagnostics, fileObjs);
+        this.types = Types.instance(((JavacTaskImpl)task).getContext());
+
+        fileManager.close();
+    }
+
+    /**
+     * Sets up a source file that will be compiled as part of a batch; see
+     * {@link #parseAll(List, List, Charset)}.
+     */
+    private Source(String src, String text, Charset charset,
+            JavaCompiler compiler, StandardJavaFileManager fileManager,
+            DiagnosticCollector<JavaFileObject> diagnostics) {
+        setSource(src, text, charset);
+        this.compiler = compiler;
+        this.fileManager = fileManager;
+        this.diagnostics = diagnostics;
+    }
+
+    /**
+     * Parses and attributes a group of Java source files, read using the
+     * platform's default charset, with a single compiler task.
+     *
+     * @param srcs the Java source files to parse
+     * @return a {@code Source} for each of the files, in the same order
+     * @throws CompilerException if the compiler could not be set up
+     * @throws IOException if an input file couldn't be read
+     * @see #parseAll(List, Charset)
+     */
+    public static List<Source> parseAll(List<String> srcs)
+            throws CompilerException, IOException {
+        return parseAll(srcs, Charset.defaultCharset());
+    }
+
+    /**
+     * Parses and attributes a group of Java source files with a single
+     * compiler task.  Compiler start-up and the loading of the symbol
+     * table happen once for the whole group instead of once per file, and
+     * each resulting {@code Source} returns just its own compilation units
+     * from {@link #parse()}.
+     * <p>
+     *
+     * If type analysis of the group fails, each file is instead set up
+     * on its own, as by {@link #Source(String, Charset)}, so that only the
+     * files that cannot be analyzed are skipped.
+     *
+     * @param srcs the Java source files to parse
+     * @param charset the character encoding of the files
+     * @return a {@code Source} for each of the files, in the same order
+     * @throws CompilerException if the compiler could not be set up
+     * @throws IOException if an input file couldn't be read
+     */
+    public static List<Source> parseAll(List<String> srcs, Charset charset)
+            throws CompilerException, IOException {
+        List<String> texts = new ArrayList<>(srcs.size());
+        for (String src : srcs) {
+            texts.add(readText(src, charset));
+        }
+        return parseAll(srcs, texts, charset);
+    }
+
+    /**
+     * Parses and attributes a group of Java source files, whose contents
+     * have already been read, with a single compiler task; see {@link
+     * #parseAll(List, Charset)}.
+     *
+     * @param srcs the Java source files to parse
+     * @param texts the contents of the files, in the same order
+     * @param charset the character encoding of the files
+     * @return a {@code Source} for each of the files, in the same order
+     * @throws CompilerException if the compiler could not be set up
+     * @throws IOException if there is trouble setting up the compiler
+     */
+    public static List<Source> parseAll(List<String> srcs, List<String> texts,
+            Charset charset) throws CompilerException, IOException {
+        JavaCompiler compiler = getCompiler();
+        DiagnosticCollector<JavaFileObject> diagnostics =
+            new DiagnosticCollector<JavaFileObject>();
+        StandardJavaFileManager fileManager =
+            getFileManager(compiler, diagnostics);
+
+        List<Source> sources = new ArrayList<>(srcs.size());
+        List<JavaFileObject> fileObjs = new ArrayList<>(srcs.size());
+        Map<URI, Source> byUri = new HashMap<>();
+        for (int i = 0; i < srcs.size(); i++) {
+            Source source = new Source(srcs.get(i), texts.get(i), charset,
+                compiler, fileManager, diagnostics);
+            source.compUnits = new LinkedHashSet<>();
+            sources.add(source);
+            fileObjs.add(source.fileObject);
+            byUri.put(source.fileObject.toUri(), source);
+        }
+        JavacTask task = createTask(compiler, fileManager, diagnostics, fileObjs);
+        Types types = Types.instance(((JavacTaskImpl)task).getContext());
+        for (Source source : sources) {
+            source.task = task;
+            source.types = types;
+        }
+
+        try {
+            for (CompilationUnitTree tree : task.parse()) {
+                byUri.get(tree.getSourceFile().toUri()).compUnits.add(tree);
+            }
+            reportErrors(diagnostics);
+
+            // Add type information to the ASTs.
+            try {
+              task.analyze();
+            } catch (Throwable e) {
+              System.err.println("WARNING: type analysis failed for a batch of "
+                  + srcs.size() + " files; processing them one at a time");
+              System.err.println("  Type analysis failed due to: " + e.getMessage());
+              sources.clear();
+              for (int i = 0; i < srcs.size(); i++) {
+                  sources.add(new Source(srcs.get(i), texts.get(i), charset));
+              }
+            }
+        } finally {
+            fileManager.close();
+        }
+        return sources;
+    }
+
+    private static JavaCompiler getCompiler() throws CompilerException {
+        JavaCompiler compiler = javax.tools.ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new CompilerException("could not get compiler instance");
+        }
+        return compiler;
+    }
+
+    private static StandardJavaFileManager getFileManager(JavaCompiler compiler,
+            DiagnosticCollector<JavaFileObject> diagnostics)
+            throws CompilerException {
+        StandardJavaFileManager fileManager =
+            compiler.getStandardFileManager(diagnostics, null, null);
         if (fileManager == null) {
             throw new CompilerException("could not get file manager");
         }
+        return fileManager;
+    }
 
-        Iterable<? extends JavaFileObject> fileObjs = fileManager
-            .getJavaFileObjectsFromStrings(Collections.singletonList(src));
-
+    private static JavacTask createTask(JavaCompiler compiler,
+            StandardJavaFileManager fileManager,
+            DiagnosticCollector<JavaFileObject> diagnostics,
+            Iterable<? extends JavaFileObject> fileObjs)
+            throws CompilerException {
         // Compiler options.
         // -Xlint:-options is a hack to get around Jenkins build problem:
         // "target value 1.8 is obsolete and will be removed in a future release"
@@ -77,22 +262,69 @@ public final class Source {
         if (!(cTask instanceof JavacTask)) {
             throw new CompilerException("could not get a valid JavacTask: " + cTask.getClass());
         }
-        this.task = (JavacTask)cTask;
-        this.types = Types.instance(((JavacTaskImpl)cTask).getContext());
+        return (JavacTask)cTask;
+    }
+
+    /** Reads a source file with a single bulk read. */
+    private static String readText(String src, Charset charset)
+            throws IOException {
+        return new String(Files.readAllBytes(Paths.get(src)), charset);
+    }
 
-        // Read the source file into a buffer.
+    /**
+     * Loads the text of the source file into a buffer, and creates the
+     * file object through which the compiler sees that text.
+     */
+    private void setSource(String src, String text, Charset charset) {
         path = src;
-        source = new StringBuilder();
-        FileInputStream in = new FileInputStream(src);
-        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-        int c;
-        while ((c = in.read()) != -1) {
-            bytes.write(c);
-        }
-        in.close();
-        source.append(bytes.toString());
-        bytes.close();
-        fileManager.close();
+        this.charset = charset;
+        source = new PieceTable(text);
+        lineSeparator = inferLineSeparator(text);
+        fileObject = new SourceFileObject(src, text);
+    }
+
+    /**
+     * A Java source file whose contents have already been read into
+     * memory, so that the compiler does not read the file again.
+     */
+    private static class SourceFileObject extends SimpleJavaFileObject {
+        private final String name;
+        private final String text;
+
+        SourceFileObject(String name, String text) {
+            super(new File(name).toURI(), JavaFileObject.Kind.SOURCE);
+            this.name = name;
+            this.text = text;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return text;
+        }
+    }
+
+    /**
+     * Prints the compiler diagnostics, and exits if any of them is an error.
+     */
+    private static void reportErrors(DiagnosticCollector<JavaFileObject> diagnostics) {
+        List<Diagnostic<? extends JavaFileObject>> errors = diagnostics.getDiagnostics();
+        if (!diagnostics.getDiagnostics().isEmpty()) {
+            int numErrors = 0;
+            for (Diagnostic<? extends JavaFileObject> d : errors) {
+                System.err.println(d);
+                if (d.getKind() == Diagnostic.Kind.ERROR) { ++numErrors; }
+            }
+            if (numErrors > 0) {
+                System.err.println(numErrors + " error" + (numErrors != 1 ? "s" : ""));
+                System.err.println("WARNING: Error processing input source files. Please fix and try again.");
+                System.exit(1);
+            }
+        }
     }
 
     /**
@@ -107,6 +339,10 @@ public final class Source {
      * @return the Tree API roots for the input file
      */
     public Set<CompilationUnitTree> parse() {
+        if (compUnits != null) {
+            // Already parsed and analyzed along with the rest of its batch.
+            return compUnits;
+        }
 
         try {
             Set<CompilationUnitTree> compUnits = new HashSet<>();
@@ -115,19 +351,7 @@ public final class Source {
                 compUnits.add(tree);
             }
 
-            List<Diagnostic<? extends JavaFileObject>> errors = diagnostics.getDiagnostics();
-            if (!diagnostics.getDiagnostics().isEmpty()) {
-                int numErrors = 0;
-                for (Diagnostic<? extends JavaFileObject> d : errors) {
-                    System.err.println(d);
-                    if (d.getKind() == Diagnostic.Kind.ERROR) { ++numErrors; }
-                }
-                if (numErrors > 0) {
-                    System.err.println(numErrors + " error" + (numErrors != 1 ? "s" : ""));
-                    System.err.println("WARNING: Error processing input source files. Please fix and try again.");
-                    System.exit(1);
-                }
-            }
+            reportErrors(diagnostics);
 
             // Add type information to the AST.
             try {
@@ -156,6 +380,11 @@ public final class Source {
      * Note that calling this can throw off indices in later parts of the
      * file.  Therefore, when doing multiple insertions, you should perform
      * them from the end of the file forward.
+     * <p>
+     *
+     * Insertion does not move any existing text, so its cost depends only
+     * logarithmically on the size of the file and the number of earlier
+     * insertions.
      *
      * @param offset the offset to place the start of the insertion text
      * @param str the text to insert
@@ -172,10 +401,63 @@ public final class Source {
         return source.substring(start, end);
     }
 
+    /**
+     * @return the current length of the source text
+     */
+    public int length() {
+        return source.length();
+    }
+
+    /**
+     * Returns the whole source text.  This copies the entire file, so
+     * prefer {@link #charAt}, {@link #substring}, and {@link #length}
+     * when only part of it is needed.
+     *
+     * @return the current source text
+     */
     public String getString() {
         return source.toString();
     }
 
+    /**
+     * Returns the line separator used in the original source file: whichever of
+     * "\n", "\r\n", and "\r" ends the most lines, with ties going to the
+     * platform's line separator.
+     *
+     * @return the line separator of the source file
+     */
+    public String getLineSeparator() {
+        return lineSeparator;
+    }
+
+    private static String inferLineSeparator(String text) {
+        int n = 0;
+        int rn = 0;
+        int r = 0;
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c == '\n') {
+                n++;
+            } else if (c == '\r') {
+                if (i + 1 < length && text.charAt(i + 1) == '\n') {
+                    rn++;
+                    i++;
+                } else {
+                    r++;
+                }
+            }
+        }
+        String lineSep = System.lineSeparator();
+        if (rn > n && rn > r || lineSep.equals("\r\n") && rn >= n && rn >= r) {
+            return "\r\n";
+        }
+        if (r > n && r > rn || lineSep.equals("\r") && r >= n && r >= rn) {
+            return "\r";
+        }
+        return "\n";
+    }
+
     /**
      * Writes the modified source file to the given stream.
      *
@@ -183,9 +465,10 @@ public final class Source {
      * @throws IOException if the source file couldn't be written
      */
     public void write(OutputStream out) throws IOException {
-        out.write(source.toString().getBytes());
-        out.flush();
-        out.close();
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, charset));
+        source.writeTo(writer);
+        writer.flush();
+        writer.close();
     }
 
 }
@@ -0,0 +1,155 @@
+package annotator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds the package and the top-level type names of a Java source file by
+ * a lexical scan, without parsing it.  Comments and string and character
+ * literals are skipped, and a type name is recognized as the identifier
+ * after {@code class}, {@code interface} or {@code enum} (including
+ * {@code @interface}) outside of any braces or parentheses.
+ *
+ * <p>The scan is only a filter: {@link Main} uses it to decide which
+ * files can possibly receive insertions, so whenever the text is not
+ * what the scan expects, it gives up rather than guess.
+ */
+final class TopLevelNames {
+
+  private final String text;
+  private int pos = 0;
+
+  private TopLevelNames(String text) {
+    this.text = text;
+  }
+
+  /**
+   * Returns the fully-qualified names of the top-level types declared in
+   * the given source text, in the form used by the keys of {@link
+   * annotator.find.Insertions}.
+   *
+   * @param text the contents of a Java source file
+   * @return the qualified names of the top-level types, or null if the
+   *     text could not be scanned with confidence, for example because it
+   *     contains Unicode escapes, unterminated comments or unbalanced
+   *     brackets
+   */
+  static List<String> scan(String text) {
+    return new TopLevelNames(text).scan();
+  }
+
+  private List<String> scan() {
+    if (text.contains("\\u")) {
+      // A Unicode escape can hide any character from the scan.
+      return null;
+    }
+    String pkg = "";
+    List<String> names = new ArrayList<>();
+    int braces = 0;
+    int parens = 0;
+    String token;
+    while ((token = next()) != null) {
+      boolean topLevel = braces == 0 && parens == 0;
+      if (token.equals("{")) {
+        braces++;
+      } else if (token.equals("}")) {
+        braces--;
+      } else if (token.equals("(")) {
+        parens++;
+      } else if (token.equals(")")) {
+        parens--;
+      } else if (topLevel && token.equals("package")) {
+        StringBuilder sb = new StringBuilder();
+        while ((token = next()) != null && !token.equals(";")) {
+          if (!token.equals(".") && !isIdentifier(token)) {
+            return null;
+          }
+          sb.append(token);
+        }
+        pkg = sb.toString();
+      } else if (topLevel && (token.equals("class")
+          || token.equals("interface") || token.equals("enum"))) {
+        token = next();
+        if (token == null || !isIdentifier(token)) {
+          return null;
+        }
+        names.add(pkg.isEmpty() ? token : pkg + "." + token);
+      }
+      if (braces < 0 || parens < 0) {
+        return null;
+      }
+    }
+    return pos < 0 || braces != 0 || parens != 0 ? null : names;
+  }
+
+  /**
+   * Returns the next token: an identifier or keyword, or a single other
+   * character.  Whitespace, comments and literals are skipped; numbers
+   * come back as identifiers, which is harmless here.
+   *
+   * @return the next token, or null at the end of the text or at an
+   *     unterminated comment or literal, in which case {@link #pos} is
+   *     set to -1
+   */
+  private String next() {
+    int n = text.length();
+    while (pos >= 0 && pos < n) {
+      char c = text.charAt(pos);
+      if (Character.isWhitespace(c)) {
+        pos++;
+      } else if (text.startsWith("//", pos)) {
+        int eol = indexOfLineEnd(pos);
+        pos = eol < 0 ? n : eol;
+      } else if (text.startsWith("/*", pos)) {
+        int end = text.indexOf("*/", pos + 2);
+        pos = end < 0 ? -1 : end + 2;
+      } else if (c == '"' || c == '\'') {
+        pos = skipLiteral(pos, c);
+      } else if (Character.isJavaIdentifierStart(c)
+          || Character.isDigit(c)) {
+        int start = pos;
+        while (pos < n && Character.isJavaIdentifierPart(text.charAt(pos))) {
+          pos++;
+        }
+        return text.substring(start, pos);
+      } else {
+        pos++;
+        return String.valueOf(c);
+      }
+    }
+    return null;
+  }
+
+  /** Returns the index of the line terminator at or after {@code from}, or -1. */
+  private int indexOfLineEnd(int from) {
+    for (int i = from; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '\n' || c == '\r') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the index just after the string or character literal that
+   * starts at {@code start}, or -1 if it is not terminated on its line.
+   */
+  private int skipLiteral(int start, char quote) {
+    for (int i = start + 1; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '\\') {
+        i++;
+      } else if (c == quote) {
+        return i + 1;
+      } else if (c == '\n' || c == '\r') {
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean isIdentifier(String token) {
+    return Character.isJavaIdentifierStart(token.charAt(0));
+  }
+}
@@ -1,6 +1,7 @@
 package annotator.find;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import javax.lang.model.element.Modifier;
@@ -72,6 +73,13 @@ public class ASTPathCriterion implements Criterion {
      */
     ASTPath astPath;
 
+    /**
+     * The path, with canonical tree kinds, to the parent of the node that
+     * {@link #astPath} designates, or null if this criterion can also be
+     * satisfied outside of that parent's subtree.
+     */
+    private final ASTPath anchor;
+
     /**
      * Constructs a new ASTPathCriterion to match the given AST path.
      * <p>
@@ -83,6 +91,106 @@ public class ASTPathCriterion implements Criterion {
      */
     public ASTPathCriterion(ASTPath astPath) {
         this.astPath = astPath;
+        this.anchor = computeAnchor(astPath);
+    }
+
+    /**
+     * Returns the path to the parent of the node that this criterion
+     * designates, if every node that satisfies this criterion lies within
+     * that parent's subtree.  Tree kinds in the returned path are
+     * canonical, as by {@link #canonical(ASTPath.ASTEntry)}, so that it can
+     * be compared with the canonical form of a path from
+     * {@link scenelib.annotations.io.ASTIndex}.
+     * <p>
+     * The result is null when the path goes through a construct for which
+     * {@link #isSatisfiedBy(TreePath)} also accepts nodes that are not
+     * there in the source: new array types, wildcards, bounds, and
+     * constructor and receiver signatures.  Such criteria must be checked
+     * at every node.
+     *
+     * @return the anchor of this criterion's path, or null
+     */
+    public ASTPath getAnchor() {
+        return anchor;
+    }
+
+    /**
+     * Determines whether this criterion's path starts below the enclosing
+     * method or class, rather than at it.
+     *
+     * @return true if the path does not start with a method or class entry
+     */
+    public boolean isRelative() {
+        if (astPath.isEmpty()) {
+            return true;
+        }
+        Tree.Kind kind = astPath.get(0).getTreeKind();
+        return kind != Tree.Kind.METHOD && !ASTPath.isClassEquiv(kind);
+    }
+
+    private static ASTPath computeAnchor(ASTPath astPath) {
+        int n = astPath.size();
+        if (n == 0) {
+            return null;
+        }
+        ASTPath result = ASTPath.empty();
+        for (int i = 0; i < n; i++) {
+            ASTPath.ASTEntry entry = astPath.get(i);
+            Tree.Kind kind = entry.getTreeKind();
+            // the kinds for which checkNull can succeed, and new array
+            // types, which getNext can synthesize
+            if (ASTPath.isClassEquiv(kind) || ASTPath.isWildcard(kind)
+                    || kind == Tree.Kind.TYPE_PARAMETER
+                    || kind == Tree.Kind.NEW_ARRAY) {
+                return null;
+            }
+            if (kind == Tree.Kind.METHOD) {
+                // a constructor or receiver path can match the method itself
+                if (i > 0 || n == 1
+                        || entry.childSelectorIs(ASTPath.PARAMETER)
+                                && entry.getArgument() < 0
+                        || astPath.get(1).childSelectorIs(ASTPath.PARAMETER)
+                        || astPath.get(1).childSelectorIs(ASTPath.TYPE_PARAMETER)) {
+                    return null;
+                }
+            }
+            // an unbounded wildcard may stand for whatever follows
+            if (i > 0 && (astPath.get(i-1).childSelectorIs(ASTPath.TYPE_ARGUMENT)
+                    || astPath.get(i-1).childSelectorIs(ASTPath.UNDERLYING_TYPE))) {
+                return null;
+            }
+            if (i < n-1) {
+                result = result.extend(canonical(entry));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the entry that stands for the given entry and all entries
+     * whose tree kinds {@link #kindsMatch} considers equivalent.
+     *
+     * @param entry an AST path entry
+     * @return the canonical form of {@code entry}
+     */
+    public static ASTPath.ASTEntry canonical(ASTPath.ASTEntry entry) {
+        Tree.Kind kind = entry.getTreeKind();
+        Tree.Kind canonicalKind = ASTPath.isClassEquiv(kind)
+                        ? Tree.Kind.CLASS
+                : ASTPath.isCompoundAssignment(kind)
+                        ? Tree.Kind.PLUS_ASSIGNMENT
+                : ASTPath.isUnaryOperator(kind)
+                        ? Tree.Kind.UNARY_PLUS
+                : ASTPath.isBinaryOperator(kind)
+                        ? Tree.Kind.PLUS
+                : ASTPath.isWildcard(kind)
+                        ? Tree.Kind.UNBOUNDED_WILDCARD
+                : kind;
+        if (canonicalKind == kind) {
+            return entry;
+        }
+        return new ASTPath.ASTEntry(canonicalKind, entry.getChildSelector(),
+                entry.hasArgument() ? entry.getArgument() : null);
     }
 
     @Override
@@ -105,12 +213,12 @@ public class ASTPathCriterion implements Criterion {
         // computed by traversing from this location up the source code AST
         // until it reaches a method node (this gets only the part of the path
         // within a method) or class node (this gets only the part of the path
-        // within a field).
+        // within a field), and then reversed.
         List<Tree> actualPath = new ArrayList<>();
         Tree leaf = path.getLeaf();
         Tree.Kind kind = leaf.getKind();
         while (kind != Tree.Kind.METHOD && !ASTPath.isClassEquiv(kind)) {
-            actualPath.add(0, leaf);
+            actualPath.add(leaf);
             path = path.getParentPath();
             if (path == null) { break; }
             leaf = path.getLeaf();
@@ -125,9 +233,10 @@ public class ASTPathCriterion implements Criterion {
                             && kind == Tree.Kind.METHOD
                     || entryKind == Tree.Kind.CLASS
                             && ASTPath.isClassEquiv(kind)) {
-                actualPath.add(0, leaf);
+                actualPath.add(leaf);
             }
         }
+        Collections.reverse(actualPath);
 
         if (debug) {
             System.out.println("ASTPathCriterion.isSatisfiedBy");
@@ -1,6 +1,7 @@
 package annotator.find;
 
 import scenelib.annotations.el.RelativeLocation;
+import annotator.scanner.ClassOffsets;
 import annotator.scanner.MethodCallScanner;
 
 import com.sun.source.tree.Tree;
@@ -9,10 +10,13 @@ import com.sun.source.util.TreePath;
 public class CallCriterion implements Criterion {
   private final String methodName;
   private final RelativeLocation loc;
+  private final ClassOffsets offsets;
 
-  public CallCriterion(String methodName, RelativeLocation loc) {
+  public CallCriterion(String methodName, RelativeLocation loc,
+      ClassOffsets offsets) {
     this.methodName = methodName;
     this.loc = loc;
+    this.offsets = offsets;
   }
 
   @Override
@@ -37,7 +41,7 @@ public class CallCriterion implements Criterion {
       boolean b;
       if (loc.isBytecodeOffset()) {
         int indexInClass =
-            MethodCallScanner.getMethodCallIndex(methodName, loc.offset);
+            offsets.methodCallIndex(methodName, loc.offset);
         b = (indexInSource == indexInClass);
       } else {
         b = (indexInSource == loc.index);
@@ -2,6 +2,7 @@ package annotator.find;
 
 import scenelib.annotations.el.RelativeLocation;
 import annotator.scanner.CastScanner;
+import annotator.scanner.ClassOffsets;
 
 import com.sun.source.tree.Tree;
 import com.sun.source.util.TreePath;
@@ -13,10 +14,13 @@ public class CastCriterion implements Criterion {
 
   private final String methodName;
   private final RelativeLocation loc;
+  private final ClassOffsets offsets;
 
-  public CastCriterion(String methodName, RelativeLocation loc) {
+  public CastCriterion(String methodName, RelativeLocation loc,
+      ClassOffsets offsets) {
     this.methodName = methodName.substring(0, methodName.lastIndexOf(")") + 1);
     this.loc = loc;
+    this.offsets = offsets;
   }
 
   @Override
@@ -40,7 +44,7 @@ public class CastCriterion implements Criterion {
       int indexInSource = CastScanner.indexOfCastTree(path, leaf);
       boolean b;
       if (loc.isBytecodeOffset()) {
-        int indexInClass = CastScanner.getMethodCastIndex(methodName, loc.offset);
+        int indexInClass = offsets.castIndex(methodName, loc.offset);
         b = (indexInSource == indexInClass);
       } else {
         b = (indexInSource == loc.index);
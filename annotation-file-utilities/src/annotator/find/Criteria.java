@@ -1,7 +1,11 @@
 package annotator.find;
 
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumSet;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 
 import scenelib.annotations.el.BoundLocation;
 import scenelib.annotations.el.InnerTypeLocation;
@@ -11,6 +15,7 @@ import scenelib.annotations.el.TypeIndexLocation;
 import scenelib.annotations.io.ASTPath;
 import scenelib.annotations.io.DebugWriter;
 import annotator.Main;
+import annotator.scanner.ClassOffsets;
 
 import com.sun.source.tree.Tree;
 import com.sun.source.util.TreePath;
@@ -26,14 +31,36 @@ import com.sun.source.util.TreePath;
 public final class Criteria {
   public static DebugWriter dbug = new DebugWriter();
 
+  /** Number of times each kind of criterion has been evaluated. */
+  private static final LongAdder[] evaluations =
+      new LongAdder[Criterion.Kind.values().length];
+  /** Number of times each kind of criterion has not been satisfied. */
+  private static final LongAdder[] rejections =
+      new LongAdder[Criterion.Kind.values().length];
+
+  static {
+    for (int i = 0; i < evaluations.length; i++) {
+      evaluations[i] = new LongAdder();
+      rejections[i] = new LongAdder();
+    }
+  }
+
   /** The set of criterion objects, indexed by kind. */
   private final Map<Criterion.Kind, Criterion> criteria;
 
+  /** The kinds of the criterion objects. */
+  private final EnumSet<Criterion.Kind> kinds;
+
+  /** The criterion objects, in the order in which to evaluate them. */
+  private Criterion[] evaluationOrder;
+
   /**
    * Creates a new {@code Criteria} without any {@code Criterion}.
    */
   public Criteria() {
     this.criteria = new LinkedHashMap<>();
+    this.kinds = EnumSet.noneOf(Criterion.Kind.class);
+    this.evaluationOrder = new Criterion[0];
   }
 
   /**
@@ -43,6 +70,57 @@ public final class Criteria {
    */
   public void add(Criterion c) {
     criteria.put(c.getKind(), c);
+    kinds.add(c.getKind());
+    Criterion[] order = criteria.values().toArray(new Criterion[0]);
+    Arrays.sort(order, new Comparator<Criterion>() {
+      @Override
+      public int compare(Criterion c1, Criterion c2) {
+        return Integer.compare(cost(c1.getKind()), cost(c2.getKind()));
+      }
+    });
+    evaluationOrder = order;
+  }
+
+  /**
+   * Returns the relative cost of evaluating a kind of criterion, for
+   * ordering the criteria so that cheap checks that reject most trees
+   * come before expensive ones.  The checks of the tree kind and of the
+   * enclosing declarations look at a few nodes; the checks that count
+   * occurrences, or that walk AST paths, type paths, or method signatures,
+   * do much more work.
+   */
+  private static int cost(Criterion.Kind kind) {
+    switch (kind) {
+    case HAS_KIND:
+    case CLASS:
+    case PACKAGE:
+      return 0;
+    case IN_METHOD:
+    case NOT_IN_METHOD:
+    case IN_STATIC_INIT:
+    case IN_INSTANCE_INIT:
+    case IN_FIELD_INIT:
+    case IN_PACKAGE:
+      return 1;
+    case IN_CLASS:
+    case ENCLOSED_BY:
+      return 2;
+    case CAST:
+    case NEW:
+    case INSTANCE_OF:
+    case METHOD_CALL:
+    case METHOD_REFERENCE:
+    case LAMBDA_EXPRESSION:
+      return 4;
+    case AST_PATH:
+      return 5;
+    case SIG_METHOD:
+      return 6;
+    case GENERIC_ARRAY_LOCATION:
+      return 7;
+    default:
+      return 3;
+    }
   }
 
   /**
@@ -60,12 +138,18 @@ public final class Criteria {
       return false;
     }
     assert path.getLeaf() == leaf;
-    for (Criterion c : criteria.values()) {
+    boolean debug = dbug.isEnabled();
+    for (Criterion c : evaluationOrder) {
+      int k = c.getKind().ordinal();
+      evaluations[k].increment();
       if (! c.isSatisfiedBy(path, leaf)) {
-        dbug.debug("UNsatisfied criterion of type %s [%s]:%n    leaf=%s%n",
-            c, c.getClass(), Main.leafString(path));
+        rejections[k].increment();
+        if (debug) {
+          dbug.debug("UNsatisfied criterion of type %s [%s]:%n    leaf=%s%n",
+              c, c.getClass(), Main.leafString(path));
+        }
         return false;
-      } else {
+      } else if (debug) {
         dbug.debug("satisfied criterion of type %s [%s]:%n    leaf=%s%n",
             c, c.getClass(), Main.leafString(path));
       }
@@ -82,30 +166,53 @@ public final class Criteria {
    * false otherwise
    */
   public boolean isSatisfiedBy(TreePath path) {
-    for (Criterion c : criteria.values()) {
+    boolean debug = dbug.isEnabled();
+    for (Criterion c : evaluationOrder) {
+      int k = c.getKind().ordinal();
+      evaluations[k].increment();
       if (! c.isSatisfiedBy(path)) {
-        dbug.debug("UNsatisfied criterion: %s%n", c);
+        rejections[k].increment();
+        if (debug) {
+          dbug.debug("UNsatisfied criterion: %s%n", c);
+        }
         return false;
-      } else {
+      } else if (debug) {
         dbug.debug("satisfied criterion: %s%n", c);
       }
     }
     return true;
   }
 
+  /**
+   * Returns the number of times that criteria of the given kind have been
+   * evaluated by {@link #isSatisfiedBy}, in all threads.
+   *
+   * @param kind the kind of criterion
+   * @return the number of evaluations
+   */
+  public static long getEvaluations(Criterion.Kind kind) {
+    return evaluations[kind.ordinal()].sum();
+  }
+
+  /**
+   * Returns the number of times that criteria of the given kind have been
+   * evaluated by {@link #isSatisfiedBy} and not been satisfied, in all
+   * threads.  Criteria after an unsatisfied one are not evaluated.
+   *
+   * @param kind the kind of criterion
+   * @return the number of rejections
+   */
+  public static long getRejections(Criterion.Kind kind) {
+    return rejections[kind.ordinal()].sum();
+  }
+
   /**
    * Determines whether this is the criteria on a receiver.
    *
    * @return true iff this is the criteria on a receiver
    */
   public boolean isOnReceiver() {
-    for (Criterion c : criteria.values()) {
-      if (c.getKind() == Criterion.Kind.RECEIVER) {
-        return true;
-      }
-    }
-
-    return false;
+    return kinds.contains(Criterion.Kind.RECEIVER);
   }
 
   /**
@@ -114,13 +221,7 @@ public final class Criteria {
    * @return true iff this is the criteria on a package
    */
   public boolean isOnPackage() {
-    for (Criterion c : criteria.values()) {
-      if (c.getKind() == Criterion.Kind.PACKAGE) {
-        return true;
-      }
-    }
-
-    return false;
+    return kinds.contains(Criterion.Kind.PACKAGE);
   }
 
   /**
@@ -129,13 +230,7 @@ public final class Criteria {
    * @return true iff this is the criteria on a return type
    */
   public boolean isOnReturnType() {
-    for (Criterion c : criteria.values()) {
-      if (c.getKind() == Criterion.Kind.RETURN_TYPE) {
-        return true;
-      }
-    }
-
-    return false;
+    return kinds.contains(Criterion.Kind.RETURN_TYPE);
   }
 
   /**
@@ -144,13 +239,7 @@ public final class Criteria {
    * @return true iff this is the criteria on a local variable
    */
   public boolean isOnLocalVariable() {
-    for (Criterion c : criteria.values()) {
-      if (c.getKind() == Criterion.Kind.LOCAL_VARIABLE) {
-        return true;
-      }
-    }
-
-    return false;
+    return kinds.contains(Criterion.Kind.LOCAL_VARIABLE);
   }
 
   /**
@@ -158,63 +247,38 @@ public final class Criteria {
    * of 'instanceof'.
    */
   public boolean isOnInstanceof() {
-    for (Criterion c : criteria.values()) {
-      if (c.getKind() == Criterion.Kind.INSTANCE_OF) {
-        return true;
-      }
-    }
-    return false;
+    return kinds.contains(Criterion.Kind.INSTANCE_OF);
   }
 
   /**
    * Determines whether this is the criteria on an object initializer.
    */
   public boolean isOnNew() {
-    for (Criterion c : criteria.values()) {
-      if (c.getKind() == Criterion.Kind.NEW) {
-        return true;
-      }
-    }
-    return false;
+    return kinds.contains(Criterion.Kind.NEW);
   }
 
   /**
    * Determines whether this is the criteria on a class {@code extends} bound.
    */
   public boolean isOnTypeDeclarationExtendsClause() {
-    for (Criterion c : criteria.values()) {
-      if (c.getKind() == Criterion.Kind.EXTIMPLS_LOCATION) {
-        return ((ExtImplsLocationCriterion) c).getIndex() == -1;
-      }
-    }
-    return false;
+    Criterion c = criteria.get(Criterion.Kind.EXTIMPLS_LOCATION);
+    return c != null && ((ExtImplsLocationCriterion) c).getIndex() == -1;
   }
 
   /**
    * Returns true if this Criteria is on the given method.
    */
   public boolean isOnMethod(String methodname) {
-    for (Criterion c : criteria.values()) {
-      if (c.getKind() == Criterion.Kind.IN_METHOD) {
-        if (((InMethodCriterion) c).name.equals(methodname)) {
-          return true;
-        }
-      }
-    }
-    return false;
+    Criterion c = criteria.get(Criterion.Kind.IN_METHOD);
+    return c != null && ((InMethodCriterion) c).name.equals(methodname);
   }
 
   /**
    * Returns true if this Criteria is on a field declaration.
    */
   public boolean isOnFieldDeclaration() {
-    for (Criterion c : criteria.values()) {
-      if (c.getKind() == Criterion.Kind.FIELD
-          && ((FieldCriterion) c).isDeclaration) {
-        return true;
-      }
-    }
-    return false;
+    Criterion c = criteria.get(Criterion.Kind.FIELD);
+    return c != null && ((FieldCriterion) c).isDeclaration;
   }
 
   /**
@@ -225,7 +289,6 @@ public final class Criteria {
    * @return true iff this is the criteria on a local variable
    */
   public boolean isOnVariableDeclaration() {
-    // Could fuse the loops for efficiency, but is it important to do so?
     return isOnLocalVariable() || isOnFieldDeclaration();
   }
 
@@ -236,13 +299,17 @@ public final class Criteria {
    * @return AST path from {@link ASTPathCriterion}, or null if none present
    */
   public ASTPath getASTPath() {
-    for (Criterion c : criteria.values()) {
-      if (c.getKind() == Criterion.Kind.AST_PATH) {
-        return ((ASTPathCriterion) c).astPath;
-      }
-    }
+    Criterion c = criteria.get(Criterion.Kind.AST_PATH);
+    return c == null ? null : ((ASTPathCriterion) c).astPath;
+  }
 
-    return null;
+  /**
+   * Gives the {@link ASTPathCriterion} in the criteria, if any.
+   *
+   * @return the AST path criterion, or null if none present
+   */
+  ASTPathCriterion getASTPathCriterion() {
+    return (ASTPathCriterion) criteria.get(Criterion.Kind.AST_PATH);
   }
 
   /**
@@ -251,13 +318,8 @@ public final class Criteria {
    * @return class name from {@link InClassCriterion}, or null if none present
    */
   public String getClassName() {
-    for (Criterion c : criteria.values()) {
-      if (c.getKind() == Criterion.Kind.IN_CLASS) {
-        return ((InClassCriterion) c).className;
-      }
-    }
-
-    return null;
+    Criterion c = criteria.get(Criterion.Kind.IN_CLASS);
+    return c == null ? null : ((InClassCriterion) c).className;
   }
 
   /**
@@ -266,53 +328,69 @@ public final class Criteria {
    * @return method name from {@link InMethodCriterion}, or null if none present
    */
   public String getMethodName() {
+    Criterion c = criteria.get(Criterion.Kind.IN_METHOD);
+    return c == null ? null : ((InMethodCriterion) c).name;
+  }
+
+  /**
+   * Returns the kind of tree that the program element must be, if these
+   * Criteria restrict it to one kind.  A {@link IsCriterion} is also
+   * satisfied by a class tree, so class trees must be considered as well.
+   *
+   * @return the required leaf kind, or null if any kind may match
+   */
+  Tree.Kind getLeafKind() {
     for (Criterion c : criteria.values()) {
-      if (c.getKind() == Criterion.Kind.IN_METHOD) {
-        return ((InMethodCriterion) c).name;
+      if (c.getKind() == Criterion.Kind.HAS_KIND) {
+        return ((IsCriterion) c).kind;
+      }
+      if (c.getKind() == Criterion.Kind.SIG_METHOD) {
+        return Tree.Kind.METHOD;
       }
     }
 
     return null;
   }
 
+  /**
+   * Returns the name of the class that the program element is, if these
+   * Criteria require it to be a class: for example, for an annotation on
+   * a class declaration.
+   *
+   * @return class name from {@link IsCriterion}, or null if none present
+   */
+  String getIsClassName() {
+    Criterion c = criteria.get(Criterion.Kind.HAS_KIND);
+    if (c != null && ((IsCriterion) c).kind == Tree.Kind.CLASS) {
+      return ((IsCriterion) c).name;
+    }
+    return null;
+  }
+
   /**
    * Returns the name of the member field specified in the Criteria, if any.
    *
    * @return field name from {@link FieldCriterion}, or null if none present
    */
   public String getFieldName() {
-    for (Criterion c : criteria.values()) {
-      if (c.getKind() == Criterion.Kind.FIELD) {
-        return ((FieldCriterion) c).varName;
-      }
-    }
-
-    return null;
+    Criterion c = criteria.get(Criterion.Kind.FIELD);
+    return c == null ? null : ((FieldCriterion) c).varName;
   }
 
   /**
    * @return a GenericArrayLocationCriterion if this has one, else null
    */
   public GenericArrayLocationCriterion getGenericArrayLocation() {
-    for (Criterion c : criteria.values()) {
-      if (c.getKind() == Criterion.Kind.GENERIC_ARRAY_LOCATION) {
-        return (GenericArrayLocationCriterion) c;
-      }
-    }
-    return null;
+    return (GenericArrayLocationCriterion)
+        criteria.get(Criterion.Kind.GENERIC_ARRAY_LOCATION);
   }
 
   /**
    * @return a RelativeCriterion if this has one, else null
    */
   public RelativeLocation getCastRelativeLocation() {
-    RelativeLocation result = null;
-    for (Criterion c : criteria.values()) {
-      if (c.getKind() == Criterion.Kind.CAST) {
-        result = ((CastCriterion) c).getLocation();
-      }
-    }
-    return result;
+    Criterion c = criteria.get(Criterion.Kind.CAST);
+    return c == null ? null : ((CastCriterion) c).getLocation();
   }
 
   // Returns the last one. Should really return the outermost one.
@@ -321,13 +399,7 @@ public final class Criteria {
    * @return an InClassCriterion if this has one, else null
    */
   public InClassCriterion getInClass() {
-    InClassCriterion result = null;
-    for (Criterion c : criteria.values()) {
-      if (c.getKind() == Criterion.Kind.IN_CLASS) {
-        result = (InClassCriterion) c;
-      }
-    }
-    return result;
+    return (InClassCriterion) criteria.get(Criterion.Kind.IN_CLASS);
   }
 
   /**
@@ -492,36 +564,43 @@ public final class Criteria {
 //    return new ParamCriterion(methodName, pos, loc);
 //  }
 
-  public final static Criterion local(String methodName, LocalLocation loc) {
-    return new LocalVariableCriterion(methodName, loc);
+  public final static Criterion local(String methodName, LocalLocation loc,
+      ClassOffsets offsets) {
+    return new LocalVariableCriterion(methodName, loc, offsets);
   }
 
-  public final static Criterion cast(String methodName, RelativeLocation loc) {
-    return new CastCriterion(methodName, loc);
+  public final static Criterion cast(String methodName, RelativeLocation loc,
+      ClassOffsets offsets) {
+    return new CastCriterion(methodName, loc, offsets);
   }
 
-  public final static Criterion newObject(String methodName, RelativeLocation loc) {
-    return new NewCriterion(methodName, loc);
+  public final static Criterion newObject(String methodName, RelativeLocation loc,
+      ClassOffsets offsets) {
+    return new NewCriterion(methodName, loc, offsets);
   }
 
-  public final static Criterion instanceOf(String methodName, RelativeLocation loc) {
-    return new InstanceOfCriterion(methodName, loc);
+  public final static Criterion instanceOf(String methodName, RelativeLocation loc,
+      ClassOffsets offsets) {
+    return new InstanceOfCriterion(methodName, loc, offsets);
   }
 
-  public static Criterion memberReference(String methodName, RelativeLocation loc) {
-    return new MemberReferenceCriterion(methodName, loc);
+  public static Criterion memberReference(String methodName, RelativeLocation loc,
+      ClassOffsets offsets) {
+    return new MemberReferenceCriterion(methodName, loc, offsets);
   }
 
-  public static Criterion methodCall(String methodName, RelativeLocation loc) {
-    return new CallCriterion(methodName, loc);
+  public static Criterion methodCall(String methodName, RelativeLocation loc,
+      ClassOffsets offsets) {
+    return new CallCriterion(methodName, loc, offsets);
   }
 
   public final static Criterion typeArgument(String methodName, RelativeLocation loc) {
     return new TypeArgumentCriterion(methodName, loc);
   }
 
-  public final static Criterion lambda(String methodName, RelativeLocation loc) {
-    return new LambdaCriterion(methodName, loc);
+  public final static Criterion lambda(String methodName, RelativeLocation loc,
+      ClassOffsets offsets) {
+    return new LambdaCriterion(methodName, loc, offsets);
   }
 
   public final static Criterion atBoundLocation(BoundLocation loc) {
@@ -37,8 +37,10 @@ final class InMethodCriterion implements Criterion {
 
   @Override
   public boolean isSatisfiedBy(TreePath path) {
-    Criteria.dbug.debug("InMethodCriterion.isSatisfiedBy(%s); this=%s%n",
-        Main.leafString(path), this.toString());
+    if (Criteria.dbug.isEnabled()) {
+      Criteria.dbug.debug("InMethodCriterion.isSatisfiedBy(%s); this=%s%n",
+          Main.leafString(path), this.toString());
+    }
 
     // true if the argument is within a variable declaration's initializer expression.
     boolean inDecl = false;
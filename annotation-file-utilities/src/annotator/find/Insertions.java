@@ -127,6 +127,42 @@ public class Insertions implements Iterable<Insertion> {
     }
   }
 
+  /**
+   * Returns whether {@link #forOuterClass} could return any {@link
+   * Insertion}s for the given outer class.  Unlike {@link #forOuterClass},
+   * this needs no compilation unit, so it can be asked before a source
+   * file is parsed.
+   *
+   * @param qualifiedOuterClassName the fully qualified outer class name,
+   *     or "" for insertions that are neither within nor on a class
+   * @return true if some insertion is for the given outer class or one
+   *     of its inner or local classes
+   */
+  public boolean hasOuterClass(String qualifiedOuterClassName) {
+    Map<String, Set<Insertion>> map = store.get(qualifiedOuterClassName);
+    if (map != null) {
+      for (Set<Insertion> set : map.values()) {
+        if (!set.isEmpty()) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns whether some insertion may apply to the given outer class or
+   * to one of its inner or local classes.  Unlike {@link #hasOuterClass},
+   * this also counts the insertions that are neither within nor on a
+   * class, which may apply anywhere.
+   *
+   * @param qualifiedOuterClassName the fully qualified outer class name
+   * @return false if no insertion can apply to the given outer class
+   */
+  public boolean mayApplyTo(String qualifiedOuterClassName) {
+    return hasOuterClass(qualifiedOuterClassName) || hasOuterClass("");
+  }
+
   /** Side-effects {@code result} to add {@link Insertion}s for {@code qualifiedClassName}. */
   private void forClass(CompilationUnitTree cut,
       String qualifiedClassName, Set<Insertion> result) {
@@ -158,9 +194,16 @@ public class Insertions implements Iterable<Insertion> {
     String outerClass;
     String innerClass;
     if (icc == null) {
-      // Not in a class.
-      outerClass = "";
-      innerClass = "";
+      String className = ins.getCriteria().getIsClassName();
+      if (className == null) {
+        // Not in a class.
+        outerClass = "";
+        innerClass = "";
+      } else {
+        // On a class declaration, which only that class's file can hold.
+        outerClass = outerClassName(className);
+        innerClass = innerClassName(className);
+      }
     } else {
       outerClass = outerClassName(icc.className);
       innerClass = innerClassName(icc.className);
@@ -1187,7 +1230,7 @@ loop:
   /** Simple AST implementation used only in determining type paths. */
   static abstract class TypeTree implements ExpressionTree {
     private static Map<String, TypeTag> primTags = new HashMap<>();
-    {
+    static {
       primTags.put("byte", TypeTag.BYTE);
       primTags.put("char", TypeTag.CHAR);
       primTags.put("short", TypeTag.SHORT);
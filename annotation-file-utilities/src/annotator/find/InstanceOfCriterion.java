@@ -3,6 +3,7 @@ package annotator.find;
 import scenelib.annotations.el.RelativeLocation;
 
 import annotator.Main;
+import annotator.scanner.ClassOffsets;
 import annotator.scanner.InstanceOfScanner;
 
 import com.sun.source.tree.InstanceOfTree;
@@ -13,10 +14,13 @@ public class InstanceOfCriterion implements Criterion {
 
   private final String methodName;
   private final RelativeLocation loc;
+  private final ClassOffsets offsets;
 
-  public InstanceOfCriterion(String methodName, RelativeLocation loc) {
+  public InstanceOfCriterion(String methodName, RelativeLocation loc,
+      ClassOffsets offsets) {
     this.methodName = methodName.substring(0, methodName.lastIndexOf(")") + 1);
     this.loc = loc;
+    this.offsets = offsets;
   }
 
   @Override
@@ -68,7 +72,7 @@ public class InstanceOfCriterion implements Criterion {
       Criteria.dbug.debug("return source: %d%n", indexInSource);
       boolean b;
       if (loc.isBytecodeOffset()) {
-        int indexInClass = InstanceOfScanner.getMethodInstanceOfIndex(methodName, loc.offset);
+        int indexInClass = offsets.instanceOfIndex(methodName, loc.offset);
         Criteria.dbug.debug("return class: %d%n", indexInClass);
         b = (indexInSource == indexInClass);
       } else {
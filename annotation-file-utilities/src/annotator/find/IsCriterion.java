@@ -11,8 +11,8 @@ import com.sun.source.util.TreePath;
  */
 final class IsCriterion implements Criterion {
 
-  private final Tree.Kind kind;
-  private final String name;
+  final Tree.Kind kind;
+  final String name;
 
   IsCriterion(Tree.Kind kind, String name) {
     this.kind = kind;
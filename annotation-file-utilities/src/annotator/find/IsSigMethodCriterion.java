@@ -3,11 +3,14 @@ package annotator.find;
 import annotator.Main;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.plumelib.reflection.Signatures;
 
@@ -35,14 +38,75 @@ public class IsSigMethodCriterion implements Criterion {
   private static class Context {
     public final String packageName;
     public final List<String> imports;
+    /** The signatures of the methods in the compilation unit, as resolved. */
+    private final Map<MethodTree, MethodSignature> methods =
+        new ConcurrentHashMap<>();
+    /**
+     * Results of {@link #matchSimpleType}, keyed by the fully-qualified
+     * type and the source type, separated by a space.
+     */
+    private final Map<String, Boolean> matches = new ConcurrentHashMap<>();
+
     public Context(String packageName, List<String> imports) {
       this.packageName = packageName;
       this.imports = imports;
     }
+
+    @Override
+    public String toString() {
+      return "Context(" + packageName + ", " + imports + ")";
+    }
   }
 
-  /** Map from compilation unit to Context. */
-  private static final Map<CompilationUnitTree, Context> contextCache = new HashMap<>();
+  /**
+   * The name and the source parameter and return types of one method
+   * declaration.  Types are as written in the source, without type
+   * arguments, and also with the method's and enclosing classes' type
+   * variables replaced by their first bounds.
+   */
+  private static class MethodSignature {
+    final String name;
+    final String[] paramTypes;
+    /** Null if there are no type variables in scope. */
+    final String @Nullable [] erasedParamTypes;
+    /** Null for a constructor. */
+    final @Nullable String returnType;
+    /** Null for a constructor or if there are no type variables in scope. */
+    final @Nullable String erasedReturnType;
+
+    MethodSignature(MethodTree mt, Map<String, String> typeToClassMap) {
+      name = mt.getName().toString();
+      List<? extends VariableTree> params = mt.getParameters();
+      paramTypes = new String[params.size()];
+      erasedParamTypes =
+          typeToClassMap.isEmpty() ? null : new String[params.size()];
+      for (int i = 0; i < paramTypes.length; i++) {
+        String type = params.get(i).getType().toString();
+        paramTypes[i] = withoutTypeArguments(type);
+        if (erasedParamTypes != null) {
+          erasedParamTypes[i] = withoutTypeArguments(
+              replaceTypeVariables(type, typeToClassMap));
+        }
+      }
+      Tree rt = mt.getReturnType();
+      if (rt == null) {
+        returnType = null;
+        erasedReturnType = null;
+      } else {
+        returnType = withoutTypeArguments(rt.toString());
+        erasedReturnType = typeToClassMap.isEmpty() ? null
+            : withoutTypeArguments(
+                replaceTypeVariables(rt.toString(), typeToClassMap));
+      }
+    }
+  }
+
+  /**
+   * Map from compilation unit to Context.  Weak, so that a long run does
+   * not keep every compilation unit that it has processed.
+   */
+  private static final Map<CompilationUnitTree, Context> contextCache =
+      Collections.synchronizedMap(new WeakHashMap<CompilationUnitTree, Context>());
 
   /** The full JVML signature, without return type. */
   private final String signature;
@@ -58,52 +122,48 @@ public class IsSigMethodCriterion implements Criterion {
    * @param fullSignature the full JVML signature
    */
   public IsSigMethodCriterion(String fullSignature) {
-    this.signature = fullSignature.substring(0, fullSignature.indexOf(")") + 1);
-    this.simpleMethodName = fullSignature.substring(0, fullSignature.indexOf("("));
-//    this.fullyQualifiedParams = new ArrayList<String>();
-//    for (String s : fullSignature.substring(
-//        fullSignature.indexOf("(") + 1, fullSignature.indexOf(")")).split(",")) {
-//      if (s.length() > 0) {
-//        fullyQualifiedParams.add(s);
-//      }
-//    }
-    this.fullyQualifiedParams = new ArrayList<>();
+    int open = fullSignature.indexOf('(');
+    int close = fullSignature.indexOf(')');
+    this.signature = fullSignature.substring(0, close + 1);
+    this.simpleMethodName = fullSignature.substring(0, open);
     try {
-      parseParams(
-        fullSignature.substring(fullSignature.indexOf("(") + 1,
-            fullSignature.indexOf(")")));
+      this.fullyQualifiedParams =
+          Collections.unmodifiableList(parseParams(fullSignature, open + 1, close));
     } catch (Exception e) {
       throw new RuntimeException("Caught exception while parsing method: " +
           fullSignature, e);
     }
-    String returnTypeJvml = fullSignature.substring(fullSignature.indexOf(")") + 1);
+    String returnTypeJvml = fullSignature.substring(close + 1);
     this.returnType = (returnTypeJvml.equals("V")
                        ? null
                        : Signatures.fieldDescriptorToBinaryName(returnTypeJvml));
   }
 
-  // params is in JVML format
-  private void parseParams(String params) {
-    while (params.length() != 0) {
-      // nextParam is in JVML format
-      String nextParam = readNext(params);
-      params = params.substring(nextParam.length());
-      fullyQualifiedParams.add(Signatures.fieldDescriptorToBinaryName(nextParam));
-    }
-  }
-
-  // strip a JVML type off a string containing multiple concatenated JVML types
-  private String readNext(String restOfParams) {
-    String firstChar = restOfParams.substring(0, 1);
-    if (isPrimitiveLetter(firstChar)) {
-      return firstChar;
-    } else if (firstChar.equals("[")) {
-      return "[" + readNext(restOfParams.substring(1));
-    } else if (firstChar.equals("L")) {
-      return "L" + restOfParams.substring(1, restOfParams.indexOf(";") + 1);
-    } else {
-      throw new RuntimeException("Unknown method params: " + signature + " with remainder: " + restOfParams);
+  // Parses the JVML parameter types between the given indexes.
+  private List<@BinaryName String> parseParams(String descriptor, int start,
+      int end) {
+    List<@BinaryName String> result = new ArrayList<>();
+    int i = start;
+    while (i < end) {
+      int j = i;
+      while (descriptor.charAt(j) == '[') {
+        j++;
+      }
+      char c = descriptor.charAt(j);
+      if (c == 'L') {
+        j = descriptor.indexOf(';', j);
+      } else if (!isPrimitiveLetter(c)) {
+        j = -1;
+      }
+      if (j < 0 || j >= end) {
+        throw new RuntimeException("Unknown method params: " + signature
+            + " with remainder: " + descriptor.substring(i, end));
+      }
+      result.add(Signatures.fieldDescriptorToBinaryName(
+          descriptor.substring(i, j + 1)));
+      i = j + 1;
     }
+    return result;
   }
 
   // called by isSatisfiedBy(TreePath), will get compilation unit on its own
@@ -133,68 +193,98 @@ public class IsSigMethodCriterion implements Criterion {
     return result;
   }
 
+  // Returns the signature of the method at the leaf of the path,
+  // resolving it on first use in the compilation unit.
+  private static MethodSignature methodSignature(MethodTree mt, TreePath path,
+      Context context) {
+    MethodSignature result = context.methods.get(mt);
+    if (result == null) {
+      result = new MethodSignature(mt, typeToClassMap(mt, path));
+      context.methods.put(mt, result);
+    }
+    return result;
+  }
+
   // Abstracts out the inner loop of matchTypeParams.
-  // goalType is fully-qualified.
-  private boolean matchTypeParam(String goalType, Tree type,
-                                 Map<String, String> typeToClassMap,
+  // goalType is fully-qualified.  type is as written in the source, and
+  // erasedType is type with its type variables replaced, or null if
+  // there are none in scope.
+  private boolean matchTypeParam(String goalType, String type,
+                                 @Nullable String erasedType,
                                  Context context) {
-    String simpleType = type.toString();
-
-    boolean haveMatch = matchSimpleType(goalType, simpleType, context);
-    if (!haveMatch) {
-      if (!typeToClassMap.isEmpty()) {
-        for (Map.Entry<String, String> p : typeToClassMap.entrySet()) {
-          simpleType = simpleType.replaceAll("\\b" + p.getKey() + "\\b",
-              p.getValue());
-          haveMatch = matchSimpleType(goalType, simpleType, context);
-          if (!haveMatch) {
-            Criteria.dbug.debug("matchTypeParams() => false:%n");
-            Criteria.dbug.debug("  type = %s%n", type);
-            Criteria.dbug.debug("  simpleType = %s%n", simpleType);
-            Criteria.dbug.debug("  goalType = %s%n", goalType);
-          }
-        }
+    boolean haveMatch = matchSimpleType(goalType, type, context);
+    if (!haveMatch && erasedType != null) {
+      haveMatch = matchSimpleType(goalType, erasedType, context);
+      if (!haveMatch) {
+        Criteria.dbug.debug("matchTypeParams() => false:%n");
+        Criteria.dbug.debug("  type = %s%n", type);
+        Criteria.dbug.debug("  simpleType = %s%n", erasedType);
+        Criteria.dbug.debug("  goalType = %s%n", goalType);
       }
     }
     return haveMatch;
   }
 
 
-  private boolean matchTypeParams(List<? extends VariableTree> sourceParams,
-                                  Map<String, String> typeToClassMap,
-                                  Context context) {
-    assert sourceParams.size() == fullyQualifiedParams.size();
-    for (int i = 0; i < sourceParams.size(); i++) {
+  private boolean matchTypeParams(MethodSignature method, Context context) {
+    assert method.paramTypes.length == fullyQualifiedParams.size();
+    for (int i = 0; i < method.paramTypes.length; i++) {
       String fullType = fullyQualifiedParams.get(i);
-      VariableTree vt = sourceParams.get(i);
-      Tree vtType = vt.getType();
-      if (! matchTypeParam(fullType, vtType, typeToClassMap, context)) {
+      if (! matchTypeParam(fullType, method.paramTypes[i],
+          method.erasedParamTypes == null ? null : method.erasedParamTypes[i],
+          context)) {
         Criteria.dbug.debug(
-            "matchTypeParam() => false:%n  i=%d vt = %s%n  fullType = %s%n",
-            i, vt, fullType);
+            "matchTypeParam() => false:%n  i=%d type = %s%n  fullType = %s%n",
+            i, method.paramTypes[i], fullType);
         return false;
       }
     }
     return true;
   }
 
+  // Removes the type arguments from a type as written in the source.
+  // must strip off generics, is all of this necessary, though?
+  // do you ever have generics anywhere but at the end?
+  private static String withoutTypeArguments(String simpleType) {
+    while (simpleType.contains("<")) {
+      int bracketIndex = simpleType.lastIndexOf("<");
+      String beforeBracket = simpleType.substring(0, bracketIndex);
+      String afterBracket = simpleType.substring(simpleType.indexOf(">", bracketIndex) + 1);
+      simpleType = beforeBracket + afterBracket;
+    }
+    return simpleType;
+  }
+
+  // Replaces each type variable in a type as written in the source by its
+  // first bound.
+  private static String replaceTypeVariables(String simpleType,
+      Map<String, String> typeToClassMap) {
+    for (Map.Entry<String, String> p : typeToClassMap.entrySet()) {
+      simpleType = simpleType.replaceAll("\\b" + p.getKey() + "\\b",
+          p.getValue());
+    }
+    return simpleType;
+  }
 
   // simpleType is the name as it appeared in the source code.
   // fullType is fully-qualified.
   // Both are in Java, not JVML, format.
+  // simpleType has no type arguments.
+  // The result is remembered for the compilation unit.
   private boolean matchSimpleType(String fullType, String simpleType, Context context) {
+    String key = fullType + " " + simpleType;
+    Boolean result = context.matches.get(key);
+    if (result == null) {
+      result = resolveSimpleType(fullType, simpleType, context);
+      context.matches.put(key, result);
+    }
+    return result;
+  }
+
+  private boolean resolveSimpleType(String fullType, String simpleType, Context context) {
     Criteria.dbug.debug("matchSimpleType(%s, %s, %s)%n",
         fullType, simpleType, context);
 
-    // must strip off generics, is all of this necessary, though?
-    // do you ever have generics anywhere but at the end?
-    while (simpleType.contains("<")) {
-      int bracketIndex = simpleType.lastIndexOf("<");
-      String beforeBracket = simpleType.substring(0, bracketIndex);
-      String afterBracket = simpleType.substring(simpleType.indexOf(">", bracketIndex) + 1);
-      simpleType = beforeBracket + afterBracket;
-    }
-
 
     // TODO: arrays?
 
@@ -322,9 +412,11 @@ public class IsSigMethodCriterion implements Criterion {
     Tree leaf = path.getLeaf();
 
     if (leaf.getKind() != Tree.Kind.METHOD) {
-      Criteria.dbug.debug(
-          "IsSigMethodCriterion.isSatisfiedBy(%s) => false: not a METHOD tree%n",
-          Main.leafString(path));
+      if (Criteria.dbug.isEnabled()) {
+        Criteria.dbug.debug(
+            "IsSigMethodCriterion.isSatisfiedBy(%s) => false: not a METHOD tree%n",
+            Main.leafString(path));
+      }
       return false;
     }
     // else if ((((JCMethodDecl) leaf).mods.flags & Flags.GENERATEDCONSTR) != 0) {
@@ -335,31 +427,49 @@ public class IsSigMethodCriterion implements Criterion {
     // }
 
     MethodTree mt = (MethodTree) leaf;
+    MethodSignature method = methodSignature(mt, path, context);
 
-    if (! simpleMethodName.equals(mt.getName().toString())) {
+    if (! simpleMethodName.equals(method.name)) {
       Criteria.dbug.debug("IsSigMethodCriterion.isSatisfiedBy => false: Names don't match%n");
       return false;
     }
 
-    List<? extends VariableTree> sourceParams = mt.getParameters();
-    if (fullyQualifiedParams.size() != sourceParams.size()) {
+    if (fullyQualifiedParams.size() != method.paramTypes.length) {
       Criteria.dbug.debug("IsSigMethodCriterion.isSatisfiedBy => false: Number of parameters don't match%n");
       return false;
     }
 
-    // now go through all type parameters declared by method
-    // and for each one, create a mapping from the type to the
-    // first declared extended class, defaulting to Object
-    // for example,
-    // <T extends Date> void foo(T t)
-    //  creates mapping: T -> Date
-    // <T extends Date & List> void foo(Object o)
-    //  creates mapping: T -> Date
-    // <T extends Date, U extends List> foo(Object o)
-    //  creates mappings: T -> Date, U -> List
-    // <T> void foo(T t)
-    //  creates mapping: T -> Object
+    if (! matchTypeParams(method, context)) {
+      Criteria.dbug.debug("IsSigMethodCriterion => false: Parameter types don't match%n");
+      return false;
+    }
 
+    if ((method.returnType != null) // must be a constructor
+        && (returnType != null)
+        && (! matchTypeParam(returnType, method.returnType,
+            method.erasedReturnType, context))) {
+      Criteria.dbug.debug("IsSigMethodCriterion => false: Return types don't match%n");
+      return false;
+    }
+
+    Criteria.dbug.debug("IsSigMethodCriterion.isSatisfiedBy => true%n");
+    return true;
+  }
+
+  // Go through all type parameters declared by method
+  // and for each one, create a mapping from the type to the
+  // first declared extended class, defaulting to Object
+  // for example,
+  // <T extends Date> void foo(T t)
+  //  creates mapping: T -> Date
+  // <T extends Date & List> void foo(Object o)
+  //  creates mapping: T -> Date
+  // <T extends Date, U extends List> foo(Object o)
+  //  creates mappings: T -> Date, U -> List
+  // <T> void foo(T t)
+  //  creates mapping: T -> Object
+  private static Map<String, String> typeToClassMap(MethodTree mt,
+      TreePath path) {
     Map<String, String> typeToClassMap = new HashMap<>();
     for (TypeParameterTree param : mt.getTypeParameters()) {
       String paramName = param.getName().toString();
@@ -400,21 +510,7 @@ public class IsSigMethodCriterion implements Criterion {
         ct = enclosingClass(classpath);
       }
     }
-
-    if (! matchTypeParams(sourceParams, typeToClassMap, context)) {
-      Criteria.dbug.debug("IsSigMethodCriterion => false: Parameter types don't match%n");
-      return false;
-    }
-
-    if ((mt.getReturnType() != null) // must be a constructor
-        && (returnType != null)
-        && (! matchTypeParam(returnType, mt.getReturnType(), typeToClassMap, context))) {
-      Criteria.dbug.debug("IsSigMethodCriterion => false: Return types don't match%n");
-      return false;
-    }
-
-    Criteria.dbug.debug("IsSigMethodCriterion.isSatisfiedBy => true%n");
-    return true;
+    return typeToClassMap;
   }
 
   /* This is a copy of the method from the Checker Framework
@@ -515,16 +611,16 @@ public class IsSigMethodCriterion implements Criterion {
   }
   */
 
-  private boolean isPrimitiveLetter(String s) {
+  private static boolean isPrimitiveLetter(char c) {
     return
-      s.equals("Z") ||
-      s.equals("B") ||
-      s.equals("C") ||
-      s.equals("D") ||
-      s.equals("F") ||
-      s.equals("I") ||
-      s.equals("J") ||
-      s.equals("S");
+      c == 'Z' ||
+      c == 'B' ||
+      c == 'C' ||
+      c == 'D' ||
+      c == 'F' ||
+      c == 'I' ||
+      c == 'J' ||
+      c == 'S';
   }
 
   /*
@@ -1,6 +1,7 @@
 package annotator.find;
 
 import scenelib.annotations.el.RelativeLocation;
+import annotator.scanner.ClassOffsets;
 import annotator.scanner.LambdaScanner;
 
 import com.sun.source.tree.Tree;
@@ -9,10 +10,13 @@ import com.sun.source.util.TreePath;
 public class LambdaCriterion implements Criterion {
   private final String methodName;
   private final RelativeLocation loc;
+  private final ClassOffsets offsets;
 
-  public LambdaCriterion(String methodName, RelativeLocation loc) {
+  public LambdaCriterion(String methodName, RelativeLocation loc,
+      ClassOffsets offsets) {
     this.methodName = methodName;
     this.loc = loc;
+    this.offsets = offsets;
   }
 
   @Override
@@ -33,11 +37,13 @@ public class LambdaCriterion implements Criterion {
 
     Tree leaf = path.getLeaf();
 
-    Criteria.dbug.debug("%n%s%n", this.toString());
-    Criteria.dbug.debug("LambdaCriterion.isSatisfiedBy: %s%n", leaf);
-    Criteria.dbug.debug("leaf: %s%n", leaf);
-    Criteria.dbug.debug("kind: %s%n", leaf.getKind());
-    Criteria.dbug.debug("class: %s%n", leaf.getClass());
+    if (Criteria.dbug.isEnabled()) {
+      Criteria.dbug.debug("%n%s%n", this.toString());
+      Criteria.dbug.debug("LambdaCriterion.isSatisfiedBy: %s%n", leaf);
+      Criteria.dbug.debug("leaf: %s%n", leaf);
+      Criteria.dbug.debug("kind: %s%n", leaf.getKind());
+      Criteria.dbug.debug("class: %s%n", leaf.getClass());
+    }
 
     TreePath parentPath = path.getParentPath();
     if (parentPath == null) {
@@ -58,7 +64,7 @@ public class LambdaCriterion implements Criterion {
       Criteria.dbug.debug("return source: %d%n", indexInSource);
       boolean b;
       if (loc.isBytecodeOffset()) {
-        int indexInClass = LambdaScanner.getMethodLambdaExpressionIndex(methodName, loc.offset);
+        int indexInClass = offsets.lambdaIndex(methodName, loc.offset);
         Criteria.dbug.debug("return class: %d%n", indexInClass);
         b = (indexInSource == indexInClass);
       } else {
@@ -1,16 +1,15 @@
 package annotator.find;
 
 import java.util.Objects;
-import java.util.List;
 
 import scenelib.annotations.el.LocalLocation;
+import annotator.scanner.ClassOffsets;
 import annotator.scanner.LocalVariableScanner;
 
 import com.sun.source.tree.MethodTree;
 import com.sun.source.tree.Tree;
 import com.sun.source.tree.VariableTree;
 import com.sun.source.util.TreePath;
-import com.sun.tools.javac.util.Pair;
 
 /**
  * Criterion for being a specific local variable.
@@ -22,10 +21,13 @@ public class LocalVariableCriterion implements Criterion {
 
   private final String fullMethodName;
   private final LocalLocation loc;
+  private final ClassOffsets offsets;
 
-  public LocalVariableCriterion(String methodName, LocalLocation loc) {
+  public LocalVariableCriterion(String methodName, LocalLocation loc,
+      ClassOffsets offsets) {
     this.fullMethodName = methodName.substring(0, methodName.indexOf(")") + 1);
     this.loc = loc;
+    this.offsets = offsets;
   }
 
   @Override
@@ -71,20 +73,16 @@ public class LocalVariableCriterion implements Criterion {
         return (loc.varIndex == varIndex);
       }
 
-      Pair<String, Pair<Integer, Integer>> key =
-              Pair.of(fullMethodName, Pair.of(loc.index, loc.scopeStart));
       String potentialVarName =
-              LocalVariableScanner.getFromMethodNameIndexMap(key);
+              offsets.localVariableName(fullMethodName, loc.index, loc.scopeStart);
       if (potentialVarName != null) {
         if (varName.equals(potentialVarName)) {
-          // now use methodNameCounter to ensure that if this is the
-          // i'th variable of this name, its offset is the i'th offset
-          // of all variables with this name
-          List<Integer> allOffsetsWithThisName =
-                  LocalVariableScanner.getFromMethodNameCounter(fullMethodName, potentialVarName);
-          //      methodNameCounter.get(fullMethodName).get(potentialVarName);
-          Integer thisVariablesOffset =
-                  allOffsetsWithThisName.indexOf(loc.scopeStart);
+          // now use the start offsets of all variables with this name to
+          // ensure that if this is the i'th variable of this name, its
+          // offset is the i'th offset of all variables with this name
+          int thisVariablesOffset =
+                  offsets.localVariableIndex(fullMethodName, potentialVarName,
+                      loc.scopeStart);
 
           // now you need to make sure that this is the
           // thisVariablesOffset'th variable tree in the entire source
@@ -1,6 +1,7 @@
 package annotator.find;
 
 import scenelib.annotations.el.RelativeLocation;
+import annotator.scanner.ClassOffsets;
 import annotator.scanner.MemberReferenceScanner;
 
 import com.sun.source.tree.Tree;
@@ -9,10 +10,13 @@ import com.sun.source.util.TreePath;
 public class MemberReferenceCriterion implements Criterion {
   private final String methodName;
   private final RelativeLocation loc;
+  private final ClassOffsets offsets;
 
-  public MemberReferenceCriterion(String methodName, RelativeLocation loc) {
+  public MemberReferenceCriterion(String methodName, RelativeLocation loc,
+      ClassOffsets offsets) {
     this.methodName = methodName;
     this.loc = loc;
+    this.offsets = offsets;
   }
 
   @Override
@@ -38,8 +42,7 @@ public class MemberReferenceCriterion implements Criterion {
       boolean b;
       if (loc.isBytecodeOffset()) {
         int indexInClass =
-            MemberReferenceScanner.getMemberReferenceIndex(methodName,
-                loc.offset);
+            offsets.memberReferenceIndex(methodName, loc.offset);
         b = (indexInSource == indexInClass);
       } else {
         b = (indexInSource == loc.index);
@@ -1,6 +1,7 @@
 package annotator.find;
 
 import scenelib.annotations.el.RelativeLocation;
+import annotator.scanner.ClassOffsets;
 import annotator.scanner.NewScanner;
 
 import com.sun.source.tree.Tree;
@@ -15,8 +16,10 @@ public class NewCriterion implements Criterion {
   private final Criterion inMethodCriterion;
 
   private final RelativeLocation loc;
+  private final ClassOffsets offsets;
 
-  public NewCriterion(String methodName, RelativeLocation loc) {
+  public NewCriterion(String methodName, RelativeLocation loc,
+      ClassOffsets offsets) {
     this.methodName = methodName.substring(0, methodName.lastIndexOf(")") + 1);
 
     if (!(methodName.startsWith("init for field") ||
@@ -29,6 +32,7 @@ public class NewCriterion implements Criterion {
     }
 
     this.loc = loc;
+    this.offsets = offsets;
   }
 
   @Override
@@ -60,7 +64,7 @@ public class NewCriterion implements Criterion {
       // System.out.printf("indexInSource=%d%n", indexInSource);
       boolean b;
       if (loc.isBytecodeOffset()) {
-        int indexInClass = NewScanner.getMethodNewIndex(methodName, loc.offset);
+        int indexInClass = offsets.newIndex(methodName, loc.offset);
         b = (indexInSource == indexInClass);
       } else {
         b = (indexInSource == loc.index);
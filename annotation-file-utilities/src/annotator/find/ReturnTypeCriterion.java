@@ -32,8 +32,10 @@ public class ReturnTypeCriterion implements Criterion {
   public boolean isSatisfiedBy(TreePath path) {
     if (path == null) { return false; }
 
-    Criteria.dbug.debug("ReturnTypeCriterion.isSatisfiedBy(%s); this=%n",
-        Main.leafString(path), this.toString());
+    if (Criteria.dbug.isEnabled()) {
+      Criteria.dbug.debug("ReturnTypeCriterion.isSatisfiedBy(%s); this=%n",
+          Main.leafString(path), this.toString());
+    }
 
     do {
       if (path.getLeaf().getKind() == Tree.Kind.METHOD) {
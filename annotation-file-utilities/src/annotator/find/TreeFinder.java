@@ -4,10 +4,17 @@ import scenelib.annotations.el.AnnotationDef;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -232,19 +239,25 @@ public class TreeFinder extends TreeScanner<Void, List<Insertion>> {
 
   /**
    * An alternative to TreePath.getPath(CompilationUnitTree,Tree) that
-   * caches its results.
+   * starts from the path that {@link #scan} is visiting, so that looking
+   * up the node being scanned, one of its ancestors, or a node below it
+   * does not search the whole compilation unit.
    */
   public TreePath getPath(Tree target) {
-    if (treePathCache.containsKey(target)) {
-      return treePathCache.get(target);
+    for (TreePath p = currentPath; p != null; p = p.getParentPath()) {
+      if (p.getLeaf() == target) {
+        return p;
+      }
+    }
+    if (currentPath != null) {
+      TreePath result = TreePath.getPath(currentPath, target);
+      if (result != null) {
+        return result;
+      }
     }
-    TreePath result = TreePath.getPath(tree, target);
-    treePathCache.put(target, result);
-    return result;
+    return TreePath.getPath(tree, target);
   }
 
-  Map<Tree, TreePath> treePathCache = new HashMap<>();
-
   private ASTRecord astRecord(Tree node) {
     Map<Tree, ASTRecord> index = ASTIndex.indexOf(tree);
     return index.get(node);
@@ -730,7 +743,7 @@ loop:
       if (ASTPath.TYPE.equals(childSelector)) {
       if (na.toString().startsWith("{")) {
         if (ins.getKind() == Insertion.Kind.ANNOTATION) {
-          TreePath parentPath = TreePath.getPath(tree, na).getParentPath();
+          TreePath parentPath = getPath(na).getParentPath();
           if (parentPath != null) {
             Tree parent = parentPath.getLeaf();
             if (parent.getKind() == Tree.Kind.VARIABLE) {
@@ -906,6 +919,22 @@ loop:
   private final SetMultimap<Pair<Integer, ASTPath>, Insertion> insertions;
   private final SetMultimap<ASTRecord, Insertion> astInsertions;
 
+  /** The insertions not yet placed by the scan in progress, if any. */
+  private CandidateIndex candidates;
+  /** The path from the compilation unit to the node being scanned. */
+  private TreePath currentPath;
+  /** The insertions anchored at the node being scanned or its ancestors. */
+  private List<Insertion> anchored = Collections.emptyList();
+  /** The innermost method that encloses the node being scanned. */
+  private MethodTree enclosingMethod;
+
+  /** Number of nodes that {@link #scan} has visited. */
+  private int nodesVisited;
+  /** Number of times an insertion's criteria were tested against a node. */
+  private int criteriaEvaluated;
+  /** Number of insertions for which a position was found. */
+  private int matches;
+
   /**
    * Creates a {@code TreeFinder} from a source tree.
    *
@@ -919,6 +948,242 @@ loop:
     this.dpf = new DeclarationPositionFinder();
   }
 
+  /**
+   * The insertions that a scan has not yet placed, indexed by the nodes
+   * that they can possibly match.  An insertion whose AST path can match
+   * only within the subtree of a given node (see
+   * {@link ASTPathCriterion#getAnchor()}) is a candidate only below that
+   * node, which is found by looking up each node's path from
+   * {@link ASTIndex}.  An insertion whose criteria name an
+   * enclosing method can match only within a method of that simple name,
+   * or (for {@code <init>} and {@code <clinit>}) outside of any method,
+   * in a field initializer.  An insertion whose criteria fix the kind of
+   * the leaf can match only a tree of that kind or a class.  Every other
+   * insertion is a candidate at every node.
+   */
+  private static class CandidateIndex {
+    /** The list being scanned. */
+    final List<Insertion> pending;
+    /** The AST paths of the nodes of the tree being scanned. */
+    private final Map<Tree, ASTRecord> astIndex;
+    /** The position of each insertion in {@link #pending}. */
+    private final Map<Insertion, Integer> order = new HashMap<>();
+    /** Insertions that could match anywhere. */
+    private final Set<Insertion> anywhere = new LinkedHashSet<>();
+    /** Insertions that can match only below a node with the given path. */
+    private final Map<ASTPath, Set<Insertion>> byAnchor = new HashMap<>();
+    /**
+     * Insertions that can match only below a node with the given path,
+     * relative to the enclosing method or class.
+     */
+    private final Map<ASTPath, Set<Insertion>> byRelativeAnchor =
+        new HashMap<>();
+    /** Insertions in {@link #byAnchor} or {@link #byRelativeAnchor}. */
+    private final Set<Insertion> anchored = new HashSet<>();
+    /** Insertions that can match only a leaf of the given kind. */
+    private final Map<Tree.Kind, Set<Insertion>> byKind =
+        new EnumMap<>(Tree.Kind.class);
+    /** Insertions that can match only within a method of the given name. */
+    private final Map<String, Set<Insertion>> byMethod = new HashMap<>();
+    /** Insertions that have been removed from the index. */
+    private final Set<Insertion> removed = new HashSet<>();
+    /** Canonical forms of the paths in {@link #astIndex}, by identity. */
+    private final Map<ASTPath, ASTPath> canonicalPaths =
+        new IdentityHashMap<>();
+    /** Canonical relative forms of the paths in {@link #astIndex}. */
+    private final Map<ASTPath, ASTPath> relativePaths =
+        new IdentityHashMap<>();
+
+    CandidateIndex(List<Insertion> pending, Map<Tree, ASTRecord> astIndex) {
+      this.pending = pending;
+      this.astIndex = astIndex;
+      for (Insertion i : pending) {
+        order.put(i, order.size());
+        Criteria criteria = i.getCriteria();
+        ASTPathCriterion astPathCriterion = criteria.getASTPathCriterion();
+        ASTPath anchor =
+            astPathCriterion == null ? null : astPathCriterion.getAnchor();
+        String methodName = criteria.getMethodName();
+        Tree.Kind leafKind = criteria.getLeafKind();
+        int paren = methodName == null ? -1 : methodName.indexOf('(');
+        if (anchor != null) {
+          bucket(astPathCriterion.isRelative() ? byRelativeAnchor : byAnchor,
+              anchor).add(i);
+          anchored.add(i);
+        } else if (paren >= 0) {
+          bucket(byMethod, methodName.substring(0, paren)).add(i);
+        } else if (leafKind != null) {
+          bucket(byKind, leafKind).add(i);
+        } else {
+          anywhere.add(i);
+        }
+      }
+    }
+
+    private static <K> Set<Insertion> bucket(Map<K, Set<Insertion>> map,
+        K key) {
+      Set<Insertion> set = map.get(key);
+      if (set == null) {
+        set = new LinkedHashSet<>();
+        map.put(key, set);
+      }
+      return set;
+    }
+
+    int size() {
+      return order.size() - removed.size();
+    }
+
+    boolean isEmpty() {
+      return size() == 0;
+    }
+
+    /**
+     * Returns the insertions that could match a node, in the order in
+     * which they appear in the list being scanned.
+     *
+     * @param kind the kind of the node
+     * @param methodName the simple name of the innermost method enclosing
+     *        the node, or null if it is not within a method
+     * @param anchoredAbove the insertions anchored at the node or one of
+     *        its ancestors, as returned by {@link #anchoredAt}
+     * @return the candidate insertions for the node
+     */
+    List<Insertion> forNode(Tree.Kind kind, String methodName,
+        List<Insertion> anchoredAbove) {
+      List<Insertion> result = new ArrayList<>(anywhere);
+      for (Insertion i : anchoredAbove) {
+        if (!removed.contains(i)) {
+          result.add(i);
+        }
+      }
+      if (ASTPath.isClassEquiv(kind)) {
+        for (Set<Insertion> set : byKind.values()) {
+          result.addAll(set);
+        }
+      } else {
+        addAll(result, byKind.get(kind));
+      }
+      if (methodName != null) {
+        addAll(result, byMethod.get(methodName));
+      } else {
+        addAll(result, byMethod.get("<init>"));
+        addAll(result, byMethod.get("<clinit>"));
+      }
+      if (result.size() > anywhere.size()) {
+        Collections.sort(result, new Comparator<Insertion>() {
+          @Override
+          public int compare(Insertion i1, Insertion i2) {
+            return Integer.compare(order.get(i1), order.get(i2));
+          }
+        });
+      }
+      return result;
+    }
+
+    private static void addAll(List<Insertion> list, Set<Insertion> set) {
+      if (set != null) {
+        list.addAll(set);
+      }
+    }
+
+    /**
+     * Returns the insertions that are candidates within the subtree of a
+     * node: those anchored at its ancestors, and those anchored at the
+     * node itself.
+     *
+     * @param node the node
+     * @param anchoredAbove the insertions anchored at the node's ancestors
+     * @return the insertions anchored at the node or its ancestors
+     */
+    List<Insertion> anchoredAt(Tree node, List<Insertion> anchoredAbove) {
+      if (anchored.isEmpty()) {
+        return anchoredAbove;
+      }
+      ASTRecord rec = astIndex.get(node);
+      if (rec == null) {
+        return anchoredAbove;
+      }
+      Set<Insertion> here = byAnchor.get(canonicalPath(rec.astPath));
+      Set<Insertion> relative = byRelativeAnchor.get(relativePath(rec.astPath));
+      if (here == null && relative == null) {
+        return anchoredAbove;
+      }
+      List<Insertion> result = new ArrayList<>(anchoredAbove);
+      addNew(result, here);
+      addNew(result, relative);
+      return result;
+    }
+
+    private static void addNew(List<Insertion> list, Set<Insertion> set) {
+      if (set != null) {
+        for (Insertion i : set) {
+          if (!list.contains(i)) {
+            list.add(i);
+          }
+        }
+      }
+    }
+
+    /** Returns the path with each entry replaced by its canonical form. */
+    private ASTPath canonicalPath(ASTPath path) {
+      if (path.isEmpty()) {
+        return path;
+      }
+      ASTPath result = canonicalPaths.get(path);
+      if (result == null) {
+        result = canonicalPath(path.getParentPath())
+            .extend(ASTPathCriterion.canonical(path.getLast()));
+        canonicalPaths.put(path, result);
+      }
+      return result;
+    }
+
+    /**
+     * Returns the canonical form of the part of the path below the
+     * method or class at which it starts, if any.
+     */
+    private ASTPath relativePath(ASTPath path) {
+      if (path.isEmpty()) {
+        return path;
+      }
+      ASTPath result = relativePaths.get(path);
+      if (result == null) {
+        ASTPath parent = path.getParentPath();
+        ASTPath.ASTEntry last = ASTPathCriterion.canonical(path.getLast());
+        if (!parent.isEmpty()) {
+          result = relativePath(parent).extend(last);
+        } else if (last.getTreeKind() == Tree.Kind.METHOD
+            || last.getTreeKind() == Tree.Kind.CLASS) {
+          result = parent;
+        } else {
+          result = parent.extend(last);
+        }
+        relativePaths.put(path, result);
+      }
+      return result;
+    }
+
+    /** Removes an insertion, so that it is not a candidate at later nodes. */
+    void remove(Insertion i) {
+      if (removed.add(i) && !anywhere.remove(i) && !anchored.contains(i)) {
+        for (Set<Insertion> set : byKind.values()) {
+          set.remove(i);
+        }
+        for (Set<Insertion> set : byMethod.values()) {
+          set.remove(i);
+        }
+      }
+    }
+
+    /** Removes from the list being scanned every insertion removed here. */
+    void prunePending() {
+      if (!removed.isEmpty()) {
+        pending.removeAll(removed);
+      }
+    }
+  }
+
   // which nodes are possible insertion sites
   boolean handled(Tree node) {
     switch (node.getKind()) {
@@ -973,21 +1238,63 @@ loop:
    */
   @Override
   public Void scan(Tree node, List<Insertion> p) {
-    if (node == null || p.isEmpty()) {
+    if (candidates == null || candidates.pending != p) {
+      // Outermost call for this list:  index it, and remove the insertions
+      // that were placed once the whole tree has been scanned.
+      candidates = new CandidateIndex(p, ASTIndex.indexOf(tree));
+      try {
+        return scan(node, p);
+      } finally {
+        candidates.prunePending();
+        candidates = null;
+      }
+    }
+    if (node == null || candidates.isEmpty()) {
       return null;
     }
 
-    dbug.debug("TreeFinder.scan(kind=%s, %d insertions): %s%n", node.getKind(), p.size(), Main.treeToString(node));
+    nodesVisited++;
+    // Carry the path down as TreePathScanner does, rather than searching
+    // for each node from the root.
+    TreePath outerPath = currentPath;
+    MethodTree outerMethod = enclosingMethod;
+    List<Insertion> outerAnchored = anchored;
+    currentPath = outerPath == null
+        ? TreePath.getPath(tree, node)
+        : new TreePath(outerPath, node);
+    if (node.getKind() == Tree.Kind.METHOD) {
+      enclosingMethod = (MethodTree) node;
+    }
+    anchored = candidates.anchoredAt(node, outerAnchored);
+    try {
+      return scanNode(node, p);
+    } finally {
+      currentPath = outerPath;
+      enclosingMethod = outerMethod;
+      anchored = outerAnchored;
+    }
+  }
+
+  /**
+   * Does the work of {@link #scan} for a single node, considering only
+   * the insertions that the candidate index reports could match it.
+   */
+  private Void scanNode(Tree node, List<Insertion> p) {
+    if (dbug.isEnabled()) {
+      dbug.debug("TreeFinder.scan(kind=%s, %d insertions): %s%n", node.getKind(), candidates.size(), Main.treeToString(node));
+    }
     if (annotator.Main.temporaryDebug) {
       new Error("backtrace at TreeFinder.scan()").printStackTrace();
     }
     if (! handled(node)) {
-      dbug.debug("TreeFinder.scan(%s) skipping, unhandled: %s%n", node.getClass(), Main.treeToString(node));
+      if (dbug.isEnabled()) {
+        dbug.debug("TreeFinder.scan(%s) skipping, unhandled: %s%n", node.getClass(), Main.treeToString(node));
+      }
       // nothing to do
       return super.scan(node, p);
     }
 
-    TreePath path = getPath(node);
+    TreePath path = currentPath;
     assert path == null || path.getLeaf() == node :
       String.format("Mismatch: '%s' '%s' '%s'%n",
           path, path.getLeaf(), node);
@@ -1009,30 +1316,43 @@ loop:
       }
     }
 
-    dbug.debug("Considering %d insertions.%n", p.size());
-    for (Iterator<Insertion> it = p.iterator(); it.hasNext(); ) {
-      Insertion i = it.next();
-      dbug.debug("Considering insertion at tree:%n");
-      dbug.debug("  Insertion: %s%n", i);
-      dbug.debug("  First line of node: %s%n", Main.firstLine(node.toString()));
-      dbug.debug("  Type of node: %s%n", node.getClass());
+    List<Insertion> considered = candidates.forNode(node.getKind(),
+        enclosingMethod == null ? null : enclosingMethod.getName().toString(),
+        anchored);
+    boolean debug = dbug.isEnabled();
+    if (debug) {
+      dbug.debug("Considering %d insertions.%n", considered.size());
+    }
+    for (Insertion i : considered) {
+      if (debug) {
+        dbug.debug("Considering insertion at tree:%n");
+        dbug.debug("  Insertion: %s%n", i);
+        dbug.debug("  First line of node: %s%n", Main.firstLine(node.toString()));
+        dbug.debug("  Type of node: %s%n", node.getClass());
+      }
       if (i.isInserted()) {
         // Skip this insertion if it has already been inserted. See
         // the ReceiverInsertion class for details.
-        dbug.debug("  ... already inserted%n");
-        it.remove();
+        if (debug) {
+          dbug.debug("  ... already inserted%n");
+        }
+        candidates.remove(i);
         continue;
       }
+      criteriaEvaluated++;
       if (!i.getCriteria().isSatisfiedBy(path, node)) {
-        dbug.debug("  ... not satisfied%n");
+        if (debug) {
+          dbug.debug("  ... not satisfied%n");
+        }
         continue;
       } else {
-        dbug.debug("  ... satisfied!%n");
-        dbug.debug("    First line of node: %s%n", Main.firstLine(node.toString()));
-        dbug.debug("    Type of node: %s%n", node.getClass());
-
         ASTPath astPath = i.getCriteria().getASTPath();
-        dbug.debug("    astPath = %s [%s]%n", astPath, (astPath == null) ? null : astPath.getClass());
+        if (debug) {
+          dbug.debug("  ... satisfied!%n");
+          dbug.debug("    First line of node: %s%n", Main.firstLine(node.toString()));
+          dbug.debug("    Type of node: %s%n", node.getClass());
+          dbug.debug("    astPath = %s [%s]%n", astPath, (astPath == null) ? null : astPath.getClass());
+        }
 
         // If the annotation is not applicable to this location, then
         // continue looking elsewhere for a match.
@@ -1067,12 +1387,15 @@ loop:
             : Main.convert_jaifs ? null  // already in correct form
             : findPositionByASTPath(astPath, path, i);
         if (pos != null) {
-          dbug.debug("  ... satisfied! at %d for node of type %s: %s%n",
-              pos, node.getClass(), Main.treeToString(node));
+          if (debug) {
+            dbug.debug("  ... satisfied! at %d for node of type %s: %s%n",
+                pos, node.getClass(), Main.treeToString(node));
+          }
           insertions.put(Pair.of(pos, astPath), i);
+          matches++;
         }
       }
-      it.remove();
+      candidates.remove(i);
     }
     return super.scan(node, p);
   }
@@ -1238,7 +1561,7 @@ loop:
           pos = pair.b;
           assert handled(node);
           dbug.debug("pos = %d (insertRecord=%s) at type: %s (%s)%n",
-                     pos, insertRecord, node.toString(), node.getClass());
+                     pos, insertRecord, node, node.getClass());
         } else if (node.getKind() == Tree.Kind.METHOD
             && i.getKind() == Insertion.Kind.CONSTRUCTOR
             && (((JCMethodDecl) node).mods.flags & Flags.GENERATEDCONSTR) != 0) {
@@ -1452,7 +1775,7 @@ loop:
           pos = pair.b;
           assert handled(node);
           dbug.debug("pos = %d at type: %s (%s)%n",
-              pos, node.toString(), node.getClass());
+              pos, node, node.getClass());
         } else if (node.getKind() == Tree.Kind.METHOD
             && i.getKind() == Insertion.Kind.CONSTRUCTOR
             && (((JCMethodDecl) node).mods.flags & Flags.GENERATEDCONSTR) != 0) {
@@ -1819,6 +2142,34 @@ loop:
     return Multimaps.unmodifiableSetMultimap(astInsertions);
   }
 
+  /**
+   * Returns the number of nodes visited so far by this finder.
+   *
+   * @return the number of nodes visited
+   */
+  public int getNodesVisited() {
+    return nodesVisited;
+  }
+
+  /**
+   * Returns the number of times so far that an insertion's criteria were
+   * tested against a node.
+   *
+   * @return the number of criteria evaluated
+   */
+  public int getCriteriaEvaluated() {
+    return criteriaEvaluated;
+  }
+
+  /**
+   * Returns the number of insertions for which a position has been found.
+   *
+   * @return the number of matches
+   */
+  public int getMatches() {
+    return matches;
+  }
+
   /**
    * Scans the given tree with the given insertion list and returns the
    * mapping from source position to insertion text.  The positions are sorted
@@ -1886,7 +2237,6 @@ loop:
   public SetMultimap<Pair<Integer, ASTPath>, Insertion>
   getPositions(JCCompilationUnit node, Insertions insertions) {
     List<Insertion> list = new ArrayList<>();
-    treePathCache.clear();
     if (annotator.Main.temporaryDebug) {
       System.out.println("insertions size: " + insertions.size());
       System.out.println("insertions.forOuterClass(\"\") size: " + insertions.forOuterClass(node, "").size());
@@ -0,0 +1,205 @@
+package annotator.scanner;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The bytecode offsets of the casts, object creations, instanceof checks,
+ * lambda expressions, method calls, member references and local
+ * variables in each method of one class, as gathered by
+ * {@link MethodOffsetClassVisitor}.  Methods are identified by name and
+ * parameter descriptor, as in {@code "foo(ILjava/lang/String;)"}.
+ *
+ * <p>Each class read gets its own ClassOffsets, which criteria for that
+ * class hold on to; nothing is shared between classes.
+ */
+public final class ClassOffsets {
+  private final String className;
+  private final Map<String, MethodOffsets> methods = new HashMap<>();
+
+  /**
+   * Creates an empty set of offsets for the given class.
+   *
+   * @param className the name of the class
+   */
+  public ClassOffsets(String className) {
+    this.className = className;
+  }
+
+  /** The offsets within one method. */
+  static final class MethodOffsets {
+    final OffsetTable casts = new OffsetTable();
+    final OffsetTable news = new OffsetTable();
+    final OffsetTable instanceOfs = new OffsetTable();
+    final OffsetTable lambdas = new OffsetTable();
+    final OffsetTable calls = new OffsetTable();
+    final OffsetTable memberReferences = new OffsetTable();
+    // map from (variable index, start offset) to variable name
+    final Map<Long, String> localNames = new HashMap<>();
+    // map from variable name to the start offsets of its live ranges
+    final Map<String, OffsetTable> localStarts = new HashMap<>();
+
+    void addLocalVariable(String name, int index, int start) {
+      localNames.put(localKey(index, start), name);
+      OffsetTable starts = localStarts.get(name);
+      if (starts == null) {
+        starts = new OffsetTable();
+        localStarts.put(name, starts);
+      }
+      starts.add(start);
+    }
+
+    private static Long localKey(int index, int start) {
+      return ((long) index << 32) | (start & 0xffffffffL);
+    }
+  }
+
+  public String getClassName() {
+    return className;
+  }
+
+  /**
+   * Returns the offsets of the given method, creating them if necessary.
+   *
+   * @param methodName the name and parameter descriptor of the method
+   * @return the offsets of the method
+   */
+  MethodOffsets method(String methodName) {
+    MethodOffsets m = methods.get(methodName);
+    if (m == null) {
+      m = new MethodOffsets();
+      methods.put(methodName, m);
+    }
+    return m;
+  }
+
+  /**
+   * Returns the index of the given cast offset within the given method,
+   * using 0-based indexing, or a negative number if the offset is not the
+   * offset of a cast in the method.
+   *
+   * @param methodName the name of the method
+   * @param offset the offset of the cast
+   * @return the index of the cast, or a negative number
+   */
+  public int castIndex(String methodName, int offset) {
+    MethodOffsets m = methods.get(methodName);
+    return m == null ? -1 : m.casts.indexOf(offset);
+  }
+
+  /**
+   * Returns the index of the given object or array creation offset within
+   * the given method, using 0-based indexing.
+   *
+   * @param methodName the name of the method
+   * @param offset the offset of the object or array creation
+   * @return the index of the object or array creation
+   * @throws RuntimeException if the method or offset is unknown
+   */
+  public int newIndex(String methodName, int offset) {
+    MethodOffsets m = methods.get(methodName);
+    if (m == null) {
+      throw new RuntimeException("ClassOffsets.newIndex() : "
+          + "did not find offsets for method: " + methodName
+          + " in class: " + className);
+    }
+    int index = m.news.indexOf(offset);
+    if (index < 0) {
+      throw new RuntimeException("ClassOffsets.newIndex() : "
+          + "in method: " + methodName + " did not find offset: " + offset);
+    }
+    return index;
+  }
+
+  /**
+   * Returns the index of the given instanceof offset within the given
+   * method, using 0-based indexing, or a negative number if the offset
+   * is not the offset of an instanceof check in the method.
+   *
+   * @param methodName the name of the method
+   * @param offset the offset of the instanceof check
+   * @return the index of the instanceof check, or a negative number
+   */
+  public int instanceOfIndex(String methodName, int offset) {
+    MethodOffsets m = methods.get(methodName);
+    return m == null ? -1 : m.instanceOfs.indexOf(offset);
+  }
+
+  /**
+   * Returns the index of the given lambda expression offset within the
+   * given method, using 0-based indexing, or a negative number if the
+   * offset is not the offset of a lambda expression in the method.
+   *
+   * @param methodName the name of the method
+   * @param offset the offset of the lambda expression
+   * @return the index of the lambda expression, or a negative number
+   */
+  public int lambdaIndex(String methodName, int offset) {
+    MethodOffsets m = methods.get(methodName);
+    return m == null ? -1 : m.lambdas.indexOf(offset);
+  }
+
+  /**
+   * Returns the index of the given method call offset within the given
+   * method, using 0-based indexing, or a negative number if the offset is
+   * not the offset of a method call in the method.
+   *
+   * @param methodName the name of the method
+   * @param offset the offset of the method call
+   * @return the index of the method call, or a negative number
+   */
+  public int methodCallIndex(String methodName, int offset) {
+    MethodOffsets m = methods.get(methodName);
+    return m == null ? -1 : m.calls.indexOf(offset);
+  }
+
+  /**
+   * Returns the index of the given member reference offset within the
+   * given method, using 0-based indexing, or a negative number if the
+   * offset is not the offset of a member reference in the method.
+   *
+   * @param methodName the name of the method
+   * @param offset the offset of the member reference
+   * @return the index of the member reference, or a negative number
+   */
+  public int memberReferenceIndex(String methodName, int offset) {
+    MethodOffsets m = methods.get(methodName);
+    return m == null ? -1 : m.memberReferences.indexOf(offset);
+  }
+
+  /**
+   * Returns the name of the local variable in the given method with the
+   * given index and start offset.
+   *
+   * @param methodName the name of the method
+   * @param index the local variable's index
+   * @param start the start offset of the local variable's live range
+   * @return the name of the local variable, or null if there is none
+   */
+  public String localVariableName(String methodName, int index, int start) {
+    MethodOffsets m = methods.get(methodName);
+    return m == null ? null : m.localNames.get(MethodOffsets.localKey(index, start));
+  }
+
+  /**
+   * Returns the index of the given start offset amongst the start offsets
+   * of all live ranges of local variables with the given name in the
+   * given method, using 0-based indexing.
+   *
+   * @param methodName the name of the method
+   * @param varName the name of the local variable
+   * @param start the start offset of the live range
+   * @return the index of the live range, or a negative number if there
+   *  is no such live range
+   */
+  public int localVariableIndex(String methodName, String varName, int start) {
+    MethodOffsets m = methods.get(methodName);
+    OffsetTable starts = m == null ? null : m.localStarts.get(varName);
+    return starts == null ? -1 : starts.indexOf(start);
+  }
+
+  @Override
+  public String toString() {
+    return "ClassOffsets for " + className + ": " + methods.size() + " methods";
+  }
+}
@@ -0,0 +1,131 @@
+package annotator.scanner;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import com.sun.source.tree.InstanceOfTree;
+import com.sun.source.tree.LambdaExpressionTree;
+import com.sun.source.tree.MemberReferenceTree;
+import com.sun.source.tree.MethodInvocationTree;
+import com.sun.source.tree.NewArrayTree;
+import com.sun.source.tree.NewClassTree;
+import com.sun.source.tree.Tree;
+import com.sun.source.tree.TypeCastTree;
+import com.sun.source.util.TreePath;
+
+/**
+ * The indexes of all counted expressions within one counting context (see
+ * {@link CommonScanner#findCountingContext}), computed in a single
+ * traversal of the context.  The i^th expression of a kind, in source
+ * order, has index i (0-based).  As in the individual scanners, nested
+ * classes are not counted, and new class and new array expressions share
+ * one numbering.
+ *
+ * <p>Tables are cached per counting context.  The cache is keyed weakly,
+ * and a table refers only to trees below its context, so an entry goes
+ * away together with its compilation unit.
+ */
+class CountingContextIndex extends CommonScanner {
+
+    /** The kinds of expression that are counted. */
+    enum Category {
+        CAST, INSTANCE_OF, NEW, LAMBDA, METHOD_CALL, MEMBER_REFERENCE
+    }
+
+    private static final Map<Tree, CountingContextIndex> cache =
+            Collections.synchronizedMap(
+                    new WeakHashMap<Tree, CountingContextIndex>());
+
+    private final Map<Category, Map<Tree, Integer>> indexes =
+            new EnumMap<>(Category.class);
+
+    private CountingContextIndex() {
+        for (Category category : Category.values()) {
+            indexes.put(category, new IdentityHashMap<Tree, Integer>());
+        }
+    }
+
+    /**
+     * Computes the index of the given tree amongst all trees of the given
+     * category inside its counting context, using 0-based indexing.
+     *
+     * @param origpath the path ending in the given tree
+     * @param tree the tree to search for
+     * @param category the category of {@code tree}
+     * @return the index of the given tree, or -1 if the path has no
+     *  counting context; if the tree does not occur in the context, the
+     *  index of the last tree of the category
+     */
+    static int indexOf(TreePath origpath, Tree tree, Category category) {
+        TreePath path = findCountingContext(origpath);
+        if (path == null) {
+            return -1;
+        }
+
+        Map<Tree, Integer> table = forContext(path).indexes.get(category);
+        Integer index = table.get(tree);
+        return index != null ? index : table.size() - 1;
+    }
+
+    private static CountingContextIndex forContext(TreePath path) {
+        Tree context = path.getLeaf();
+        CountingContextIndex index = cache.get(context);
+        if (index == null) {
+            // Build outside the lock; a duplicate build is harmless.
+            index = new CountingContextIndex();
+            index.scan(path, null);
+            cache.put(context, index);
+        }
+        return index;
+    }
+
+    private void record(Category category, Tree node) {
+        Map<Tree, Integer> table = indexes.get(category);
+        table.put(node, table.size());
+    }
+
+    @Override
+    public Void visitTypeCast(TypeCastTree node, Void p) {
+        record(Category.CAST, node);
+        return super.visitTypeCast(node, p);
+    }
+
+    @Override
+    public Void visitInstanceOf(InstanceOfTree node, Void p) {
+        record(Category.INSTANCE_OF, node);
+        return super.visitInstanceOf(node, p);
+    }
+
+    @Override
+    public Void visitNewClass(NewClassTree node, Void p) {
+        record(Category.NEW, node);
+        return super.visitNewClass(node, p);
+    }
+
+    @Override
+    public Void visitNewArray(NewArrayTree node, Void p) {
+        record(Category.NEW, node);
+        return super.visitNewArray(node, p);
+    }
+
+    @Override
+    public Void visitLambdaExpression(LambdaExpressionTree node, Void p) {
+        record(Category.LAMBDA, node);
+        return super.visitLambdaExpression(node, p);
+    }
+
+    @Override
+    public Void visitMethodInvocation(MethodInvocationTree node, Void p) {
+        record(Category.METHOD_CALL, node);
+        return super.visitMethodInvocation(node, p);
+    }
+
+    @Override
+    public Void visitMemberReference(MemberReferenceTree node, Void p) {
+        record(Category.MEMBER_REFERENCE, node);
+        return super.visitMemberReference(node, p);
+    }
+}
@@ -0,0 +1,86 @@
+package annotator.scanner;
+
+import java.util.Arrays;
+
+/**
+ * A list of bytecode offsets of one kind of instruction within a method,
+ * in the order in which they were recorded.  Looking up the position of an
+ * offset takes logarithmic time: the first lookup builds a sorted copy of
+ * the offsets, which later additions discard.
+ */
+final class OffsetTable {
+  private int[] offsets = new int[4];
+  private int size = 0;
+
+  // Sorted distinct offsets, and for each the position of its first
+  // occurrence in offsets; null until the first lookup.
+  private volatile int[][] sorted;
+
+  /**
+   * Appends an offset to the list.
+   *
+   * @param offset the offset to add
+   */
+  void add(int offset) {
+    insert(size, offset);
+  }
+
+  /**
+   * Inserts an offset into the list at the given position.
+   *
+   * @param position where to insert the offset
+   * @param offset the offset to add
+   */
+  void insert(int position, int offset) {
+    if (size == offsets.length) {
+      offsets = Arrays.copyOf(offsets, 2 * size);
+    }
+    System.arraycopy(offsets, position, offsets, position + 1, size - position);
+    offsets[position] = offset;
+    size++;
+    sorted = null;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * Returns the position of the first occurrence of the given offset,
+   * using 0-based indexing, or -1 if the offset is not in the list.
+   *
+   * @param offset the offset to search for
+   * @return the position of the offset, or -1
+   */
+  int indexOf(int offset) {
+    int[][] s = sorted;
+    if (s == null) {
+      s = sort();
+      sorted = s;
+    }
+    int i = Arrays.binarySearch(s[0], offset);
+    return i < 0 ? -1 : s[1][i];
+  }
+
+  private int[][] sort() {
+    // Pack each offset with its position so that sorting orders equal
+    // offsets by position.
+    long[] packed = new long[size];
+    for (int i = 0; i < size; i++) {
+      packed[i] = ((long) offsets[i] << 32) | i;
+    }
+    Arrays.sort(packed);
+    int[] keys = new int[size];
+    int[] positions = new int[size];
+    int n = 0;
+    for (long p : packed) {
+      int offset = (int) (p >> 32);
+      if (n == 0 || keys[n - 1] != offset) {
+        keys[n] = offset;
+        positions[n] = (int) p;
+        n++;
+      }
+    }
+    return new int[][] {Arrays.copyOf(keys, n), Arrays.copyOf(positions, n)};
+  }
+}
@@ -33,6 +33,7 @@ import scenelib.annotations.el.TypeIndexLocation;
 import scenelib.annotations.field.AnnotationFieldType;
 import scenelib.annotations.io.ASTPath;
 import scenelib.annotations.io.IndexFileParser;
+import scenelib.annotations.io.classfile.ClassBytesProvider;
 import scenelib.annotations.util.coll.VivifyingMap;
 import annotator.find.AnnotationInsertion;
 import annotator.find.CastInsertion;
@@ -44,6 +45,7 @@ import annotator.find.Insertion;
 import annotator.find.IntersectionTypeLocationCriterion;
 import annotator.find.NewInsertion;
 import annotator.find.ReceiverInsertion;
+import annotator.scanner.ClassOffsets;
 import annotator.scanner.MethodOffsetClassVisitor;
 
 import com.google.common.collect.LinkedHashMultimap;
@@ -56,8 +58,12 @@ public class IndexFileSpecification {
   private final List<Insertion> insertions = new ArrayList<>();
   /** Is a member of insertions (if non-null). */
   private ConstructorInsertion constructorInsertion = null;
+  /** Bytecode offsets of the class being parsed; replaced per class. */
+  private ClassOffsets classOffsets = null;
   private final AScene scene;
   private final String indexFileName;
+  /** Where the class files of annotated classes are read from. */
+  private final ClassBytesProvider classBytes;
 
   // If set, do not attempt to read class files with Asm.
   // Mostly for debugging and workarounds.
@@ -66,7 +72,20 @@ public class IndexFileSpecification {
   private static boolean debug = false;
 
   public IndexFileSpecification(String indexFileName) {
+    this(indexFileName, ClassBytesProvider.SYSTEM);
+  }
+
+  /**
+   * Creates a specification for the given index file, reading the class
+   * files of the classes it annotates from the given provider.
+   *
+   * @param indexFileName the index file
+   * @param classBytes where to find class files
+   */
+  public IndexFileSpecification(String indexFileName,
+      ClassBytesProvider classBytes) {
     this.indexFileName = indexFileName;
+    this.classBytes = classBytes;
     scene = new AScene();
   }
 
@@ -172,13 +191,15 @@ public class IndexFileSpecification {
    */
   private void parseClass(CriterionList clist, String className, AClass clazz) {
     constructorInsertion = null;  // 0 or 1 per class
+    classOffsets = new ClassOffsets(className);
     if (! noAsm) {
       //  load extra info using asm
       debug("parseClass(" + className + ")");
       try {
-        ClassReader classReader = new ClassReader(className);
+        ClassReader classReader = classBytes.getClassReader(className);
         MethodOffsetClassVisitor cv = new MethodOffsetClassVisitor(classReader);
         classReader.accept(cv, false);
+        classOffsets = cv.getOffsets();
         debug("Done reading " + className + ".class");
       } catch (IOException e) {
         // If .class file not found, still proceed, in case
@@ -653,7 +674,7 @@ public class IndexFileSpecification {
     for (Entry<LocalLocation, AField> entry : block.locals.entrySet()) {
       LocalLocation loc = entry.getKey();
       AElement var = entry.getValue();
-      CriterionList varClist = clist.add(Criteria.local(methodName, loc));
+      CriterionList varClist = clist.add(Criteria.local(methodName, loc, classOffsets));
       // parse declaration annotations
       parseElement(varClist, var);
       parseInnerAndOuterElements(varClist, var.type);
@@ -667,7 +688,7 @@ public class IndexFileSpecification {
     for (Entry<RelativeLocation, ATypeElement> entry : exp.typecasts.entrySet()) {
       RelativeLocation loc = entry.getKey();
       ATypeElement cast = entry.getValue();
-      CriterionList castClist = clist.add(Criteria.cast(methodName, loc));
+      CriterionList castClist = clist.add(Criteria.cast(methodName, loc, classOffsets));
       parseInnerAndOuterElements(castClist, cast);
     }
 
@@ -675,7 +696,7 @@ public class IndexFileSpecification {
     for (Entry<RelativeLocation, ATypeElement> entry : exp.news.entrySet()) {
       RelativeLocation loc = entry.getKey();
       ATypeElement newObject = entry.getValue();
-      CriterionList newClist = clist.add(Criteria.newObject(methodName, loc));
+      CriterionList newClist = clist.add(Criteria.newObject(methodName, loc, classOffsets));
       parseInnerAndOuterElements(newClist, newObject);
     }
 
@@ -683,7 +704,7 @@ public class IndexFileSpecification {
     for (Entry<RelativeLocation, ATypeElement> entry : exp.instanceofs.entrySet()) {
       RelativeLocation loc = entry.getKey();
       ATypeElement instanceOf = entry.getValue();
-      CriterionList instanceOfClist = clist.add(Criteria.instanceOf(methodName, loc));
+      CriterionList instanceOfClist = clist.add(Criteria.instanceOf(methodName, loc, classOffsets));
       parseInnerAndOuterElements(instanceOfClist, instanceOf);
     }
 
@@ -692,7 +713,7 @@ public class IndexFileSpecification {
       RelativeLocation loc = entry.getKey();
       ATypeElement ref = entry.getValue();
       CriterionList instanceOfClist =
-          clist.add(Criteria.memberReference(methodName, loc));
+          clist.add(Criteria.memberReference(methodName, loc, classOffsets));
       parseInnerAndOuterElements(instanceOfClist, ref);
     }
 
@@ -701,7 +722,7 @@ public class IndexFileSpecification {
       RelativeLocation loc = entry.getKey();
       ATypeElement call = entry.getValue();
       CriterionList instanceOfClist =
-          clist.add(Criteria.methodCall(methodName, loc));
+          clist.add(Criteria.methodCall(methodName, loc, classOffsets));
       parseInnerAndOuterElements(instanceOfClist, call);
     }
 
@@ -709,7 +730,7 @@ public class IndexFileSpecification {
     for (Entry<RelativeLocation, AMethod> entry : exp.funs.entrySet()) {
       RelativeLocation loc = entry.getKey();
       AMethod lambda = entry.getValue();
-      CriterionList lambdaClist = clist.add(Criteria.lambda(methodName, loc));
+      CriterionList lambdaClist = clist.add(Criteria.lambda(methodName, loc, classOffsets));
       parseLambdaExpression(className, methodName, lambda, lambdaClist);
     }
   }
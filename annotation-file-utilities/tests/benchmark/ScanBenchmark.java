@@ -0,0 +1,148 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+import annotator.Source;
+import annotator.find.Criteria;
+import annotator.find.Insertion;
+import annotator.find.Insertions;
+import annotator.find.TreeFinder;
+import annotator.specification.IndexFileSpecification;
+
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.tools.javac.tree.JCTree.JCCompilationUnit;
+
+/**
+ * Measures how long {@link TreeFinder#getPositions} takes to find where
+ * the insertions of an annotation file go in a Java file, with debugging
+ * off as it is unless the annotator is run with {@code --debug}.
+ *
+ * <p>Generates a Java file with many methods and an annotation file with
+ * insertions on the class, and on each method's return type, parameter
+ * and local variables, some of them by AST path.  The Java file is parsed
+ * once.  The annotation file is read again before each call, outside the
+ * timed region, because finding insertions marks them inserted.  Each
+ * call scans the whole tree and matches every candidate insertion's
+ * criteria and AST path against it.
+ *
+ * <p>{@code make compare} runs it against the trees just before and just
+ * after the debug calls in {@code TreeFinder.scan}, {@link
+ * Criteria#isSatisfiedBy} and the AST path matcher were guarded by {@code
+ * DebugWriter.isEnabled}.
+ *
+ * <p>Usage: {@code java ScanBenchmark [methods [iterations]]}
+ */
+public class ScanBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int methods = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+    int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+    TreeFinder.dbug.setEnabled(false);
+    Criteria.dbug.setEnabled(false);
+    // The annotation file locates everything by AST path, so the
+    // bytecode offsets in the (not compiled) class file are not needed.
+    IndexFileSpecification.noAsm = true;
+
+    File dir = Files.createTempDirectory("scan-benchmark").toFile();
+    dir.deleteOnExit();
+    File javaFile = write(dir, "Generated.java", javaSource(methods));
+    File jaifFile = write(dir, "Generated.jaif", annotationFile(methods));
+
+    Source src = new Source(javaFile.getPath(), StandardCharsets.UTF_8);
+    CompilationUnitTree cut = src.parse().iterator().next();
+    JCCompilationUnit tree = (JCCompilationUnit) cut;
+
+    int insertions = read(jaifFile.getPath()).size();
+    int positions = new TreeFinder(tree)
+        .getPositions(tree, read(jaifFile.getPath())).size();
+    System.out.printf("%d methods, %d insertions, %d positions,"
+        + " %d iterations%n", methods, insertions, positions, iterations);
+
+    // Warm up, then measure.
+    time(tree, jaifFile.getPath(), iterations);
+    long nanos = time(tree, jaifFile.getPath(), iterations);
+    System.out.printf("getPositions %8.3f ms per call%n",
+        nanos / 1e6 / iterations);
+  }
+
+  /** Returns the total time of the given number of calls. */
+  private static long time(JCCompilationUnit tree, String jaif,
+      int iterations) throws Exception {
+    long nanos = 0;
+    for (int i = 0; i < iterations; i++) {
+      Insertions insertions = read(jaif);
+      long start = System.nanoTime();
+      new TreeFinder(tree).getPositions(tree, insertions);
+      nanos += System.nanoTime() - start;
+    }
+    return nanos;
+  }
+
+  /** Reads the insertions of an annotation file, as the annotator does. */
+  private static Insertions read(String jaif) throws Exception {
+    List<Insertion> parsed = new IndexFileSpecification(jaif).parse();
+    Insertions insertions = new Insertions();
+    insertions.addAll(parsed);
+    return insertions;
+  }
+
+  private static File write(File dir, String name, String text)
+      throws IOException {
+    File file = new File(dir, name);
+    file.deleteOnExit();
+    Files.write(file.toPath(), Collections.singletonList(text),
+        StandardCharsets.UTF_8);
+    return file;
+  }
+
+  /** Returns a class with the given number of methods. */
+  private static String javaSource(int methods) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("import java.util.*;\n\n");
+    sb.append("public class Generated {\n");
+    for (int i = 0; i < methods; i++) {
+      sb.append("  List<String> m").append(i)
+          .append("(Map<String, Integer> map, int n) {\n")
+          .append("    List<String> result = new ArrayList<>();\n")
+          .append("    for (int i = 0; i < n; i++) {\n")
+          .append("      Object o = map.get(\"k\" + i);\n")
+          .append("      if (o instanceof Integer && (Integer) o > i) {\n")
+          .append("        result.add(String.valueOf((Integer) o * 2));\n")
+          .append("      }\n")
+          .append("    }\n")
+          .append("    return result;\n")
+          .append("  }\n");
+    }
+    sb.append("}\n");
+    return sb.toString();
+  }
+
+  /** Returns insertions for every method of {@link #javaSource}. */
+  private static String annotationFile(int methods) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("package bench:\n")
+        .append("annotation @A: @java.lang.annotation.Retention(value=RUNTIME)")
+        .append(" @java.lang.annotation.Target(value={TYPE_USE})\n\n")
+        .append("package :\n")
+        .append("class Generated: @bench.A\n\n");
+    for (int i = 0; i < methods; i++) {
+      sb.append("    method m").append(i)
+          .append("(Ljava/util/Map;I)Ljava/util/List;:\n")
+          .append("        return: @bench.A\n")
+          .append("            inner-type 3, 0: @bench.A\n")
+          .append("        parameter #0:\n")
+          .append("            type: @bench.A\n")
+          .append("                inner-type 3, 1: @bench.A\n")
+          .append("        insert-annotation Block.statement 0,")
+          .append(" Variable.type: @bench.A\n")
+          .append("        insert-annotation Block.statement 1,")
+          .append(" ForLoop.statement, Block.statement 0,")
+          .append(" Variable.type: @bench.A\n\n");
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,137 @@
+package annotator;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests {@link TopLevelNames}, the lexical scan with which {@link Main}
+ * decides which Java files need not be parsed.  The scan may give up
+ * (return null) on text that it does not understand, but it must never
+ * miss a top-level type.
+ */
+public class TopLevelNamesTest {
+
+  private static void assertNames(String text, String... expected) {
+    Assert.assertEquals(text, Arrays.asList(expected), TopLevelNames.scan(text));
+  }
+
+  private static void assertGivesUp(String text) {
+    Assert.assertNull(text, TopLevelNames.scan(text));
+  }
+
+  @Test
+  public void testPackageAndClass() {
+    assertNames("package p.q;\n"
+        + "import java.util.List;\n"
+        + "import p.classes.Util;\n"
+        + "public class C<T extends Comparable<T>> implements Runnable {\n"
+        + "  class Inner {}\n"
+        + "  interface NestedI {}\n"
+        + "  void m() { new Object() { }; class Local {} }\n"
+        + "  public void run() {}\n"
+        + "}\n",
+        "p.q.C");
+  }
+
+  @Test
+  public void testDefaultPackage() {
+    assertNames("import java.util.*;\nclass C { List<String> l; }\n", "C");
+    assertNames("final class C {}\nclass D {}\n", "C", "D");
+  }
+
+  @Test
+  public void testNoTypes() {
+    assertNames("");
+    // package-info.java
+    assertNames("/** Docs. */\n@Deprecated\npackage p;\n");
+  }
+
+  @Test
+  public void testSeveralTopLevelTypes() {
+    assertNames("package p;\n"
+        + "class A { class NotTopLevel {} }\n"
+        + "interface B { enum AlsoNot { X } }\n"
+        + "enum E { X, Y; E() {} }\n"
+        + "@interface D { int value() default 0; }\n",
+        "p.A", "p.B", "p.E", "p.D");
+  }
+
+  @Test
+  public void testAnnotationType() {
+    assertNames("package p;\n"
+        + "import java.lang.annotation.*;\n"
+        + "@Retention(RetentionPolicy.RUNTIME)\n"
+        + "public @interface Anno { Class<?> value(); }\n",
+        "p.Anno");
+  }
+
+  @Test
+  public void testClassLiteralsInAnnotations() {
+    assertNames("package p;\n"
+        + "@Anno(Foo.class)\n"
+        + "@Other(value = {Bar.class, int.class}, more = @Anno(Baz.class))\n"
+        + "class C {\n"
+        + "  @Anno(Object.class) Class<?> f = String.class;\n"
+        + "}\n",
+        "p.C");
+  }
+
+  @Test
+  public void testComments() {
+    assertNames("// class Line {\n"
+        + "/* class Block { */\n"
+        + "/** Javadoc mentions {@code class Doc}. */\n"
+        + "package /* class InPackage */ p;\n"
+        + "class /* interface Between */ Real {} // enum Trailing\n"
+        + "/*/ class Tricky */\n",
+        "p.Real");
+  }
+
+  @Test
+  public void testLiterals() {
+    assertNames("package p;\n"
+        + "@SuppressWarnings(\"class Fake {\")\n"
+        + "class C {\n"
+        + "  String s = \"} class Escaped \\\" { \";\n"
+        + "  char open = '{';\n"
+        + "  char quote = '\\'';\n"
+        + "  char close = '}';\n"
+        + "  String slashes = \"// /* \";\n"
+        + "}\n"
+        + "class D {}\n",
+        "p.C", "p.D");
+  }
+
+  @Test
+  public void testUnicodeEscape() {
+    // A Unicode escape can spell "class", so the scan cannot trust what
+    // it sees.
+    assertGivesUp("package p;\n\\u0063lass Hidden {}\nclass C {}\n");
+    // Even in a comment, an escaped line terminator can end the comment.
+    assertGivesUp("package p;\n// \\u000a class Hidden {}\nclass C {}\n");
+  }
+
+  @Test
+  public void testUnbalanced() {
+    assertGivesUp("package p;\nclass C {\n");
+    assertGivesUp("package p;\nclass C { } }\nclass D {}\n");
+    assertGivesUp("package p;\n@Anno(\nclass C {}\n");
+    assertGivesUp("package p;\nclass C { void m() ) {} }\n");
+  }
+
+  @Test
+  public void testUnterminated() {
+    assertGivesUp("package p;\nclass C {}\n/* class D {}\n");
+    assertGivesUp("package p;\nclass C { String s = \"abc; }\n");
+    assertGivesUp("package p;\nclass C { char c = '; }\n");
+  }
+
+  @Test
+  public void testMalformed() {
+    assertGivesUp("package p;\nclass {}\n");
+    assertGivesUp("package p;\nclass C {}\nclass");
+    assertGivesUp("package p-q;\nclass C {}\n");
+  }
+}
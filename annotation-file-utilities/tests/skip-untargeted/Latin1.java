@@ -0,0 +1,6 @@
+package annotator.tests;
+
+// Written in ISO-8859-1, which is not the encoding the annotator reads:
+// caf.  The copy must keep the byte as it is.
+public class Latin1 {
+}
@@ -0,0 +1,11 @@
+package annotator.tests;
+
+import java.util.List;
+
+public class Targeted {
+  List<String> names;
+
+  String first() {
+    return names.get(0);
+  }
+}
@@ -0,0 +1,13 @@
+package annotator.tests;
+
+/**
+ * Mentions class Targeted only in comments and literals, so no insertion
+ * can target this file and the annotator copies it without parsing it.
+ */
+public class Untargeted {
+  // class Targeted {
+  String s = "class Targeted {";
+
+  @SuppressWarnings("unused")
+  Class<?> c = Targeted.class;
+}
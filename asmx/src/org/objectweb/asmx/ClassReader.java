@@ -76,7 +76,8 @@ public class ClassReader {
     /**
      * Flag to skip method code. If this class is set <code>CODE</code>
      * attribute won't be visited. This can be used, for example, to retrieve
-     * annotations for methods and method parameters.
+     * annotations for methods and method parameters.  Type annotations stored
+     * in the <code>CODE</code> attribute are skipped as well.
      */
     public static final int SKIP_CODE = 1;
 
@@ -90,12 +91,11 @@ public class ClassReader {
     public static final int SKIP_DEBUG = 2;
 
     /**
-     * Flag to skip the stack map frames in the class. If this flag is set the
-     * stack map frames of the class is not visited, i.e. the
-     * {@link MethodVisitor#visitFrame visitFrame} method will not be called.
-     * This flag is useful when the {@link ClassWriter#COMPUTE_FRAMES} option is
-     * used: it avoids visiting frames that will be ignored and recomputed from
-     * scratch in the class writer.
+     * Flag to skip the stack map frames in the class. This reader does not
+     * visit frames one by one; if this flag is set, the
+     * <code>StackMapTable</code> and <code>StackMap</code> attributes are not
+     * read even when a prototype for them is passed to
+     * {@link #accept(ClassVisitor, Attribute[], int) accept}.
      */
     public static final int SKIP_FRAMES = 4;
 
@@ -428,6 +428,16 @@ public class ClassReader {
     // Public methods
     // ------------------------------------------------------------------------
 
+    /**
+     * Returns the internal name of the class (see
+     * {@link Type#getInternalName() getInternalName}), without visiting it.
+     *
+     * @return the internal class name.
+     */
+    public String getClassName() {
+        return readClass(header + 2, new char[maxStringLength]);
+    }
+
     /**
      * Makes the given visitor visit the Java class of this {@link ClassReader}.
      * This class is the one specified in the constructor (see
@@ -445,6 +455,20 @@ public class ClassReader {
         accept(classVisitor, new Attribute[0], skipDebug);
     }
 
+    /**
+     * Makes the given visitor visit the Java class of this {@link ClassReader}.
+     * This class is the one specified in the constructor (see
+     * {@link #ClassReader(byte[]) ClassReader}).
+     *
+     * @param classVisitor the visitor that must visit this class.
+     * @param flags option flags that can be used to modify the default
+     *        behavior of this class. See {@link #SKIP_CODE},
+     *        {@link #SKIP_DEBUG} and {@link #SKIP_FRAMES}.
+     */
+    public void accept(final ClassVisitor classVisitor, final int flags) {
+        accept(classVisitor, new Attribute[0], flags);
+    }
+
     /**
      * Makes the given visitor visit the Java class of this {@link ClassReader}.
      * This class is the one specified in the constructor (see
@@ -465,6 +489,29 @@ public class ClassReader {
         final Attribute[] attrs,
         final boolean skipDebug)
     {
+        accept(classVisitor, attrs, skipDebug ? SKIP_DEBUG : 0);
+    }
+
+    /**
+     * Makes the given visitor visit the Java class of this {@link ClassReader}.
+     * This class is the one specified in the constructor (see
+     * {@link #ClassReader(byte[]) ClassReader}).
+     *
+     * @param classVisitor the visitor that must visit this class.
+     * @param attrs prototypes of the attributes that must be parsed during the
+     *        visit of the class. Any attribute whose type is not equal to the
+     *        type of one the prototypes will be ignored.
+     * @param flags option flags that can be used to modify the default
+     *        behavior of this class. See {@link #SKIP_CODE},
+     *        {@link #SKIP_DEBUG} and {@link #SKIP_FRAMES}.
+     */
+    public void accept(
+        final ClassVisitor classVisitor,
+        final Attribute[] attrs,
+        final int flags)
+    {
+        final boolean skipDebug = (flags & SKIP_DEBUG) != 0;
+        final boolean skipFrames = (flags & SKIP_FRAMES) != 0;
         byte[] b = this.b; // the bytecode array
         char[] c = new char[maxStringLength]; // buffer used to read strings
         int i, j, k; // loop variables
@@ -960,7 +1007,7 @@ public class ClassReader {
                 }
             }
 
-            if (mv != null && v != 0) {
+            if (mv != null && v != 0 && (flags & SKIP_CODE) == 0) {
                 int maxStack = readUnsignedShort(v);
                 int maxLocals = readUnsignedShort(v + 2);
                 int codeLength = readInt(v + 4);
@@ -1154,7 +1201,10 @@ public class ClassReader {
                             w = readTypeAnnotationValues(w,
                                     c, mv, true);
                         }
-                    } else {
+                    } else if (!skipFrames
+                            || !(attrName.equals("StackMapTable")
+                                    || attrName.equals("StackMap")))
+                    {
                         for (k = 0; k < attrs.length; ++k) {
                             if (attrs[k].type.equals(attrName)) {
                                 attr = attrs[k].read(this,
@@ -54,7 +54,7 @@ public class ABlock extends AExpression {
     @Override
     public void prune() {
         super.prune();
-        locals.prune();
+        prune(locals);
     }
 
     @Override
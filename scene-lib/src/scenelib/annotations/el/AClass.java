@@ -144,12 +144,12 @@ public class AClass extends ADeclaration {
     @Override
     public void prune() {
         super.prune();
-        bounds.prune();
-        methods.prune();
-        fields.prune();
-        staticInits.prune();
-        instanceInits.prune();
-        extendsImplements.prune();
+        prune(bounds);
+        prune(methods);
+        prune(fields);
+        prune(staticInits);
+        prune(instanceInits);
+        prune(extendsImplements);
     }
 
     @Override
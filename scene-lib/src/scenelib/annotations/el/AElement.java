@@ -157,7 +157,21 @@ public class AElement implements Cloneable {
      * Removes empty subelements of this {@link AElement} depth-first.
      */
     public void prune() {
-        type.prune();
+        if (type != null) {
+            type.prune();
+        }
+    }
+
+    /**
+     * Prunes each element of {@code map}, then removes the ones that are
+     * left empty.  {@link VivifyingMap#prune} alone would keep an element
+     * whose only subelements are empty.
+     */
+    static <K, V extends AElement> void prune(VivifyingMap<K, V> map) {
+        for (V v : map.values()) {
+            v.prune();
+        }
+        map.prune();
     }
 
     @Override
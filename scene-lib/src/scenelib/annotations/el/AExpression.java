@@ -104,12 +104,12 @@ public class AExpression extends AElement {
     @Override
     public void prune() {
         super.prune();
-        typecasts.prune();
-        instanceofs.prune();
-        news.prune();
-        refs.prune();
-        calls.prune();
-        funs.prune();
+        prune(typecasts);
+        prune(instanceofs);
+        prune(news);
+        prune(refs);
+        prune(calls);
+        prune(funs);
     }
 
     @Override
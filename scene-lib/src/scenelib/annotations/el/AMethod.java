@@ -237,11 +237,11 @@ public class AMethod extends ADeclaration {
     @Override
     public void prune() {
         super.prune();
-        bounds.prune();
+        prune(bounds);
         returnType.prune();
         receiver.prune();
-        parameters.prune();
-        throwsException.prune();
+        prune(parameters);
+        prune(throwsException);
         body.prune();
     }
 
@@ -162,8 +162,8 @@ public class AScene implements Cloneable {
      * Removes empty subelements of this {@link AScene} depth-first.
      */
     public void prune() {
-        classes.prune();
-        packages.prune();
+        AElement.prune(classes);
+        AElement.prune(packages);
     }
 
     /** Returns a string representation. */
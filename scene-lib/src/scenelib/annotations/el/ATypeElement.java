@@ -75,7 +75,7 @@ public class ATypeElement extends AElement {
     @Override
     public void prune() {
         super.prune();
-        innerTypes.prune();
+        prune(innerTypes);
     }
 
     private static final String lineSep = System.getProperty("line.separator");
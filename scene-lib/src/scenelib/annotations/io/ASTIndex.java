@@ -4,8 +4,10 @@ import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.lang.model.element.Name;
 
@@ -70,11 +72,28 @@ import scenelib.annotations.util.coll.WrapperMap;
  * Cache of {@code ASTPath} data for the nodes of a compilation unit tree.
  */
 public class ASTIndex extends WrapperMap<Tree, ASTRecord> {
-  // single-item cache
-  private static Tree cachedRoot = null;
-  private static Map<Tree, ASTRecord> cachedIndex = null;
+  /** Maximum number of compilation units whose indexes are cached. */
+  private static final int MAX_CACHED = 16;
   private static final int EXPECTED_SIZE = 128;
 
+  // Least recently used indexes, keyed by compilation unit identity.  An
+  // index refers to its compilation unit, so weak keys would never be
+  // cleared; the bound is what limits the memory held.  Indexes are built
+  // outside the lock, so that threads can index different files at once.
+  private static final Map<CompilationUnitTree, ASTIndex> cache =
+      new LinkedHashMap<CompilationUnitTree, ASTIndex>(16, 0.75f, true) {
+        private static final long serialVersionUID = 20201017L;
+
+        @Override
+        protected boolean removeEldestEntry(
+            Map.Entry<CompilationUnitTree, ASTIndex> eldest) {
+          return size() > MAX_CACHED;
+        }
+      };
+  private static final AtomicLong cacheHits = new AtomicLong();
+  private static final AtomicLong cacheMisses = new AtomicLong();
+  private static final AtomicLong buildNanos = new AtomicLong();
+
   private final CompilationUnitTree cut;
   private final Map<String, Map<String, List<String>>> formals;
 
@@ -85,11 +104,50 @@ public class ASTIndex extends WrapperMap<Tree, ASTRecord> {
    * @return map of trees in compilation unit to AST paths
    */
   public static Map<Tree, ASTRecord> indexOf(CompilationUnitTree root) {
-    if (cachedRoot == null || !cachedRoot.equals(root)) {
-      cachedRoot = root;
-      cachedIndex = new ASTIndex(root);
+    ASTIndex index;
+    synchronized (cache) {
+      index = cache.get(root);
+    }
+    if (index != null) {
+      cacheHits.incrementAndGet();
+      return index;
     }
-    return cachedIndex;
+    cacheMisses.incrementAndGet();
+    long start = System.nanoTime();
+    index = new ASTIndex(root);
+    buildNanos.addAndGet(System.nanoTime() - start);
+    synchronized (cache) {
+      cache.put(root, index);
+    }
+    return index;
+  }
+
+  /**
+   * Returns the number of calls to {@link #indexOf} that found the index
+   * in the cache.
+   *
+   * @return the number of cache hits
+   */
+  public static long getCacheHits() {
+    return cacheHits.get();
+  }
+
+  /**
+   * Returns the number of calls to {@link #indexOf} that built an index.
+   *
+   * @return the number of cache misses
+   */
+  public static long getCacheMisses() {
+    return cacheMisses.get();
+  }
+
+  /**
+   * Returns the total time spent building indexes.
+   *
+   * @return the build time, in nanoseconds
+   */
+  public static long getBuildNanos() {
+    return buildNanos.get();
   }
 
   private ASTIndex(CompilationUnitTree root) {
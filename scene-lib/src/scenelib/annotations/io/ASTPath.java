@@ -1,6 +1,5 @@
 package scenelib.annotations.io;
 
-import java.lang.reflect.InvocationTargetException;
 import java.util.Objects;
 import java.io.IOException;
 import java.io.StreamTokenizer;
@@ -9,14 +8,16 @@ import java.text.Collator;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.Deque;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.plumelib.util.ArraysPlume;
 
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
 import com.sun.source.tree.AnnotatedTypeTree;
 import com.sun.source.tree.AnnotationTree;
 import com.sun.source.tree.ArrayAccessTree;
@@ -66,10 +67,15 @@ import com.sun.source.util.TreePath;
 
 /**
  * A path through the AST.
+ *
+ * <p>Paths are immutable.  A path holds its entries in an array that it
+ * shares with its prefixes and with the first path that extends it, so
+ * that extending a path usually stores one entry and getting the
+ * {@code i}-th entry is a single array access.
  */
-public class ASTPath extends ImmutableStack<ASTPath.ASTEntry>
-    implements Comparable<ASTPath>, Iterable<ASTPath.ASTEntry> {
+public class ASTPath implements Comparable<ASTPath>, Iterable<ASTPath.ASTEntry> {
   private static final ASTPath EMPTY = new ASTPath();
+  private static final Interner<ASTPath> interner = Interners.newWeakInterner();
   private static final String[] typeSelectors =
     { "bound", "identifier", "type", "typeAlternative", "typeArgument",
       "typeParameter", "underlyingType" };
@@ -117,10 +123,11 @@ public class ASTPath extends ImmutableStack<ASTPath.ASTEntry>
    * A single entry in an AST path.
    */
   public static class ASTEntry implements Comparable<ASTEntry> {
-    private Tree.Kind treeKind;
-    private String childSelector;
+    private final Tree.Kind treeKind;
+    private final String childSelector;
     /* May be null. */
-    private Integer argument;
+    private final Integer argument;
+    private final int hash;
 
     /**
      * Constructs a new AST entry. For example, in the entry:
@@ -140,6 +147,7 @@ public class ASTPath extends ImmutableStack<ASTPath.ASTEntry>
       this.treeKind = treeKind;
       this.childSelector = childSelector;
       this.argument = argument;
+      this.hash = Objects.hash(treeKind, childSelector, argument);
     }
 
     /**
@@ -246,12 +254,14 @@ public class ASTPath extends ImmutableStack<ASTPath.ASTEntry>
 
     @Override
     public boolean equals(Object o) {
-      return o instanceof ASTEntry && compareTo((ASTEntry) o) == 0;
+      return this == o
+          || o instanceof ASTEntry && hash == ((ASTEntry) o).hash
+              && compareTo((ASTEntry) o) == 0;
     }
 
     @Override
     public int hashCode() {
-      return Objects.hash(treeKind, childSelector, argument);
+      return hash;
     }
 
     @Override
@@ -271,25 +281,96 @@ public class ASTPath extends ImmutableStack<ASTPath.ASTEntry>
     }
   };
 
-  ASTPath() {}
+  /**
+   * The entries of this path, in order from the root, followed by the
+   * entries of at most one extension of this path.
+   */
+  private final ASTEntry[] entries;
+  /**
+   * Number of slots of {@link #entries} in use by some path.  Shared by all
+   * paths that share the array; an extension may store its last entry in
+   * place only if it is the first to claim that slot.
+   */
+  private final AtomicInteger claimed;
+  /** Number of entries in this path. */
+  private final int size;
+  /** This path without its last entry, or null if this path is empty. */
+  private final ASTPath parent;
+  /** Hash code of this path, computed from its parent's. */
+  private final int hash;
+
+  ASTPath() {
+    entries = new ASTEntry[0];
+    claimed = new AtomicInteger();
+    size = 0;
+    parent = null;
+    hash = 0;
+  }
+
+  private ASTPath(ASTPath parent, ASTEntry[] entries, AtomicInteger claimed) {
+    this.entries = entries;
+    this.claimed = claimed;
+    this.size = parent.size + 1;
+    this.parent = parent;
+    this.hash = 31 * parent.hash + Objects.hashCode(entries[parent.size]);
+  }
 
   public static ASTPath empty() { return EMPTY; }
 
+  /**
+   * Returns the canonical path equal to this one.  Interned paths are
+   * equal only if they are identical, so comparing them is cheap.
+   *
+   * @return a path equal to this one, shared by all equal interned paths
+   */
+  public ASTPath intern() {
+    return interner.intern(this);
+  }
+
   public static Comparator<ASTPath> getComparator() {
     return comparator;
   }
 
-  // TODO: replace w/ skip list?
   @Override
   public Iterator<ASTEntry> iterator() {
-    ImmutableStack<ASTEntry> s = this;
-    int n = size();
-    ASTEntry[] a = new ASTEntry[n];
-    while (--n >= 0) {
-      a[n] = s.peek();
-      s = s.pop();
+    return new Iterator<ASTEntry>() {
+      private int i = 0;
+
+      @Override
+      public boolean hasNext() {
+        return i < size;
+      }
+
+      @Override
+      public ASTEntry next() {
+        if (i >= size) {
+          throw new NoSuchElementException();
+        }
+        return entries[i++];
+      }
+    };
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the index-th entry of this path, counting from the root.
+   *
+   * @param index the index of the entry
+   * @return the entry at that index
+   * @throws NoSuchElementException if the index is out of range
+   */
+  public ASTEntry get(int index) {
+    if (! (0 <= index && index < size)) {
+      throw new NoSuchElementException("Has " + size + " elements, asked for #" + index);
     }
-    return Arrays.asList(a).iterator();
+    return entries[index];
   }
 
   public ASTPath extendNewArray(int depth) {
@@ -301,21 +382,38 @@ public class ASTPath extends ImmutableStack<ASTPath.ASTEntry>
   }
 
   public ASTPath add(ASTEntry entry) {
-    ASTPath path = EMPTY;
-    for (ASTEntry e : this) { path = path.extend(e); }
-    return path.extend(entry);
+    return extend(entry);
   }
 
   public ASTPath extend(ASTEntry entry) {
-    return (ASTPath) push(entry);
+    if (size < entries.length) {
+      if (claimed.compareAndSet(size, size + 1)) {
+        entries[size] = entry;
+        return new ASTPath(this, entries, claimed);
+      }
+      // Another extension holds the slot; it can be shared if that
+      // extension added the very same entry.
+      if (entry != null && entries[size] == entry) {
+        return new ASTPath(this, entries, claimed);
+      }
+    }
+    ASTEntry[] copy = Arrays.copyOf(entries, Math.max(4, 2 * (size + 1)));
+    copy[size] = entry;
+    return new ASTPath(this, copy, new AtomicInteger(size + 1));
   }
 
   public ASTPath getParentPath() {
-    return (ASTPath) pop();
+    if (isEmpty()) {
+      throw new IllegalStateException("getParentPath() on empty path");
+    }
+    return parent;
   }
 
   public ASTEntry getLast() {
-    return peek();
+    if (isEmpty()) {
+      throw new IllegalStateException("getLast() on empty path");
+    }
+    return entries[size - 1];
   }
 
   private static ASTPath canonical(ASTPath astPath) {
@@ -693,8 +791,10 @@ public class ASTPath extends ImmutableStack<ASTPath.ASTEntry>
         // in "actualPath". If it's not a match, this is not the correct
         // location. If it is a match, keep going.
         Tree next = null;
-        dbug.debug("astNode: %s%n", astNode);
-        dbug.debug("actualNode: %s%n", actualNode.getKind());
+        if (dbug.isEnabled()) {
+          dbug.debug("astNode: %s%n", astNode);
+          dbug.debug("actualNode: %s%n", actualNode.getKind());
+        }
         if (!kindsMatch(astNode.getTreeKind(), actualNode.getKind())) {
           return false;
         }
@@ -1325,13 +1425,7 @@ public class ASTPath extends ImmutableStack<ASTPath.ASTEntry>
   @Override
   public int hashCode() {
     // hacky fix: remove {Method,Class}.body for comparison
-    ImmutableStack<ASTEntry> s = canonical(this);
-    int hash = 0;
-    while (!s.isEmpty()) {
-      hash = Integer.rotateRight(hash ^ s.peek().hashCode(), 1);
-      s = s.pop();
-    }
-    return hash;
+    return canonical(this).hash;
   }
 
   @Override
@@ -1340,33 +1434,21 @@ public class ASTPath extends ImmutableStack<ASTPath.ASTEntry>
   }
 
   public boolean equals(ASTPath astPath) {
-    return compareTo(astPath) == 0;
+    return this == astPath
+        || astPath != null && hashCode() == astPath.hashCode()
+            && compareTo(astPath) == 0;
   }
 
   @Override
   public int compareTo(ASTPath o) {
     // hacky fix: remove {Method,Class}.body for comparison
-    ImmutableStack<ASTEntry> s0 = canonical(this);
-    ImmutableStack<ASTEntry> s1 = canonical(o);
-    Deque<ASTEntry> d0 = new LinkedList<ASTEntry>();
-    Deque<ASTEntry> d1 = new LinkedList<ASTEntry>();
-    int c = 0;
-    while (!s0.isEmpty()) {
-      d0.push(s0.peek());
-      s0 = s0.pop();
-    }
-    while (!s1.isEmpty()) {
-      d1.push(s1.peek());
-      s1 = s1.pop();
-    }
-    int n0 = d0.size();
-    int n1 = d1.size();
-    c = Integer.compare(n0, n1);
-    if (c == 0) {
-      Iterator<ASTEntry> i0 = d0.iterator();
-      Iterator<ASTEntry> i1 = d1.iterator();
-      while (i0.hasNext()) {
-        c = i0.next().compareTo(i1.next());
+    ASTPath p0 = canonical(this);
+    ASTPath p1 = canonical(o);
+    int c = Integer.compare(p0.size, p1.size);
+    // Paths of the same length over the same array have the same entries.
+    if (c == 0 && p0.entries != p1.entries) {
+      for (int i = 0; i < p0.size; i++) {
+        c = p0.entries[i].compareTo(p1.entries[i]);
         if (c != 0) { return c; }
       }
     }
@@ -1386,86 +1468,3 @@ public class ASTPath extends ImmutableStack<ASTPath.ASTEntry>
 
 
 } // end of class ASTPath
-
-// This class cannot be moved to (say) package scenelib.annotations.util,
-// probably because of the reflection cleverness.
-/**
- * Immutable stack:  operations create new stacks rather than mutate the receiver.
- *
- * @param <E> type of stack elements
- */
-class ImmutableStack<E> {
-
-  // The stack is implemented as a linked list:
-  // each ImmutableStack consists of an element and the rest of the list.
-  private E elem = null;
-  private ImmutableStack<E> rest = null;
-  private int size = 0;
-
-  public ImmutableStack() {
-  }
-
-  private static <T, S extends ImmutableStack<T>> S extend(T el, S s0) {
-    try {
-      @SuppressWarnings("unchecked")
-      S s1 = (S) s0.getClass().getDeclaredConstructor().newInstance();
-      ImmutableStack<T> cs = (ImmutableStack<T>) s1;
-      cs.size = 1 + s0.size();
-      cs.elem = el;
-      cs.rest = s0;
-      return s1;
-    } catch (InstantiationException | InvocationTargetException | IllegalAccessException | NoSuchMethodException e) {
-      throw new RuntimeException(e);
-    }
-  }
-
-  public boolean isEmpty() {
-    return size == 0;
-  }
-
-  public E peek() {
-    if (isEmpty()) {
-      throw new IllegalStateException("peek() on empty stack");
-    }
-    return elem;
-  }
-
-  public ImmutableStack<E> pop() {
-    if (isEmpty()) {
-      throw new IllegalStateException("pop() on empty stack");
-    }
-    return rest;
-  }
-
-  public ImmutableStack<E> push(E elem) {
-    return extend(elem, this);
-  }
-
-  public int size() { return size; }
-
-  /** Return the index-th element of this stack. */
-  public E get(int index) {
-    int n = size();
-
-    if (! (0 <= index && index < n)) {
-      throw new NoSuchElementException("Has " + n + " elements, asked for #" + index);
-    }
-
-    ImmutableStack<E> s = this;
-    while (--n > index) { s = s.pop(); }
-    return s.peek();
-  }
-
-  public String toString() {
-    if (size > 0) {
-      StringBuilder sb = new StringBuilder("]").insert(0, peek());
-      for (ImmutableStack<E> stack = pop(); !stack.isEmpty();
-          stack = stack.pop()) {
-        sb = sb.insert(0, ", ").insert(0, stack.peek());
-      }
-      return sb.insert(0, "[").toString();
-    }
-    return "[]";
-  }
-} // end of class ImmutableStack
-
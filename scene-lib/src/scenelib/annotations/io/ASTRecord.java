@@ -43,6 +43,9 @@ public class ASTRecord implements Comparable<ASTRecord> {
    */
   public final ASTPath astPath;
 
+  /** Hash code of this record, computed once since records are map keys. */
+  private final int hash;
+
   public ASTRecord(CompilationUnitTree ast, String className,
       String methodName, String varName, ASTPath astPath) {
     this.ast = ast;
@@ -63,6 +66,11 @@ public class ASTRecord implements Comparable<ASTRecord> {
       }
     }
     this.astPath = astPath;
+    int h = ast == null ? 0 : ast.hashCode();
+    h = 31 * h + Objects.hashCode(className);
+    h = 31 * h + Objects.hashCode(methodName);
+    h = 31 * h + Objects.hashCode(varName);
+    this.hash = 31 * h + Objects.hashCode(astPath);
   }
 
   public ASTRecord newArrayLevel(int depth) {
@@ -80,11 +88,16 @@ public class ASTRecord implements Comparable<ASTRecord> {
   }
 
   public boolean equals(ASTRecord astRecord) {
-    return compareTo(astRecord) == 0;
+    return this == astRecord
+        || astRecord != null && hash == astRecord.hash
+            && compareTo(astRecord) == 0;
   }
 
   @Override
   public int compareTo(ASTRecord rec) {
+    if (this == rec) {
+      return 0;
+    }
     int d = ast == null
         ? rec.ast == null ? 0 : -1
         : rec.ast == null ? 1 : Integer
@@ -114,7 +127,7 @@ public class ASTRecord implements Comparable<ASTRecord> {
 
   @Override
   public int hashCode() {
-    return Objects.hash(ast, className, methodName, varName, astPath);
+    return hash;
   }
 
   /**
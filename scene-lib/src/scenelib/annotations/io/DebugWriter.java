@@ -3,6 +3,15 @@ package scenelib.annotations.io;
 import java.io.PrintWriter;
 import java.util.logging.Level;
 
+/**
+ * Prints formatted debugging output when enabled.
+ *
+ * <p>The arguments to {@link #debug} are evaluated, and its varargs array
+ * allocated, even when output is disabled.  On hot paths, or when an
+ * argument is expensive to compute (such as the printed form of a tree),
+ * guard the call with {@link #isEnabled}, so that the disabled case costs
+ * only that test.
+ */
 public class DebugWriter {
   private PrintWriter out = new PrintWriter(System.out);
   private Level level = Level.WARNING;
@@ -23,6 +32,11 @@ public class DebugWriter {
     return false;
   }
 
+  /**
+   * Returns true if {@link #debug} produces output.
+   *
+   * @return true if this writer is enabled
+   */
   public boolean isEnabled() {
     return level == Level.INFO;
   }
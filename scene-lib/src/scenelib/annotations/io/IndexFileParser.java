@@ -1276,7 +1276,7 @@ public final class IndexFileParser {
         while (matchChar(',')) {
             astPath = astPath.extend(parseASTEntry());
         }
-        return astPath;
+        return astPath.intern();
     }
 
     /**
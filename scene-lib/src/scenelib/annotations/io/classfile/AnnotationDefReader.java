@@ -0,0 +1,263 @@
+package scenelib.annotations.io.classfile;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.objectweb.asmx.AnnotationVisitor;
+import org.objectweb.asmx.ClassReader;
+import org.objectweb.asmx.FieldVisitor;
+import org.objectweb.asmx.MethodVisitor;
+import org.objectweb.asmx.Opcodes;
+import org.objectweb.asmx.Type;
+import org.objectweb.asmx.commons.EmptyVisitor;
+
+import scenelib.annotations.Annotations;
+import scenelib.annotations.el.AClass;
+import scenelib.annotations.el.AScene;
+import scenelib.annotations.el.AnnotationDef;
+import scenelib.annotations.field.AnnotationAFT;
+import scenelib.annotations.field.AnnotationFieldType;
+import scenelib.annotations.field.ArrayAFT;
+import scenelib.annotations.field.BasicAFT;
+import scenelib.annotations.field.ClassTokenAFT;
+import scenelib.annotations.field.EnumAFT;
+import scenelib.annotations.field.ScalarAFT;
+
+import org.checkerframework.checker.signature.qual.BinaryName;
+
+/**
+ * Resolves annotation definitions from the class files of annotation types,
+ * without loading the types into the JVM: the elements of an annotation
+ * type come from its abstract methods' return types, and its
+ * meta-annotations (such as {@code @Target} and {@code @Retention}) from
+ * its runtime-visible annotations, just as {@link AnnotationDef#fromClass}
+ * finds them by reflection.  The elements are in declaration order, which
+ * is the order of the methods in the class file.
+ *
+ * <p>Resolved definitions are shared by all readers in the process, so each
+ * annotation type is read only once.  An annotation type is looked for with
+ * the given {@link ClassBytesProvider}, and then on the system classpath.
+ */
+final class AnnotationDefReader extends EmptyVisitor {
+
+  // map from binary name to definition; holds only complete definitions
+  private static final ConcurrentMap<String, AnnotationDef> cache =
+      new ConcurrentHashMap<>();
+
+  static {
+    for (AnnotationDef ad : Annotations.standardDefs) {
+      cache.put(ad.name, ad);
+    }
+  }
+
+  // The definitions that the current thread has created but whose
+  // meta-annotations it is still reading.  An annotation type can be
+  // meta-annotated with itself, directly or indirectly, so these are
+  // published together once the outermost one is complete.
+  private static final ThreadLocal<Map<String, AnnotationDef>> inProgress =
+      new ThreadLocal<Map<String, AnnotationDef>>() {
+        @Override
+        protected Map<String, AnnotationDef> initialValue() {
+          return new LinkedHashMap<>();
+        }
+      };
+
+  private final ClassBytesProvider provider;
+
+  // map from element name to type, filled in by the first pass
+  private final Map<String, AnnotationFieldType> fieldTypes =
+      new LinkedHashMap<>();
+
+  // the exception thrown while visiting an element, which accept() cannot
+  // pass on
+  private ClassNotFoundException failure;
+
+  private AnnotationDefReader(ClassBytesProvider provider) {
+    this.provider = provider;
+  }
+
+  /**
+   * Returns the definition of the given annotation type.
+   *
+   * @param name the binary name of the annotation type
+   * @param provider where to look for the annotation type's class file
+   *  before looking on the system classpath
+   * @return the definition of the annotation type
+   * @throws ClassNotFoundException if the class file of the annotation
+   *  type, or of one of the annotation or enum types of its elements,
+   *  cannot be found
+   */
+  static AnnotationDef getAnnotationDef(@BinaryName String name,
+      ClassBytesProvider provider) throws ClassNotFoundException {
+    AnnotationDef ad = cache.get(name);
+    if (ad != null) {
+      return ad;
+    }
+    Map<String, AnnotationDef> pending = inProgress.get();
+    ad = pending.get(name);
+    if (ad != null) {
+      return ad;
+    }
+
+    boolean outermost = pending.isEmpty();
+    try {
+      ad = read(name, provider, pending);
+      if (outermost) {
+        for (AnnotationDef d : pending.values()) {
+          cache.putIfAbsent(d.name, d);
+        }
+        // another thread may have published the type first
+        ad = cache.get(name);
+      }
+      return ad;
+    } finally {
+      if (outermost) {
+        pending.clear();
+      }
+    }
+  }
+
+  private static AnnotationDef read(@BinaryName String name,
+      ClassBytesProvider provider, Map<String, AnnotationDef> pending)
+      throws ClassNotFoundException {
+    ClassReader classReader = new ClassReader(classBytes(name, provider));
+
+    // First the elements, which must be known before any meta-annotation
+    // (possibly of this very type) can be built.
+    AnnotationDefReader elements = new AnnotationDefReader(provider);
+    classReader.accept(elements, true);
+    if (elements.failure != null) {
+      throw elements.failure;
+    }
+    AnnotationDef ad = new AnnotationDef(name, Annotations.noAnnotations,
+        elements.fieldTypes, "class file " + name);
+    pending.put(name, ad);
+
+    AScene scene = new AScene();
+    classReader.accept(new MetaAnnotationReader(classReader, scene, provider),
+        true);
+    for (AClass aClass : scene.classes.values()) {
+      ad.tlAnnotationsHere.addAll(aClass.tlAnnotationsHere);
+    }
+    return ad;
+  }
+
+  @Override
+  public MethodVisitor visitMethod(int access, String name, String descriptor,
+      String signature, String[] exceptions) {
+    // Only the abstract methods are elements.  An annotation type whose
+    // constants need code to initialize, such as an array, also has a
+    // static initializer.
+    if ((access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_STATIC))
+        != Opcodes.ACC_ABSTRACT) {
+      return null;
+    }
+    if (failure == null) {
+      try {
+        fieldTypes.put(name, fieldType(Type.getReturnType(descriptor)));
+      } catch (ClassNotFoundException e) {
+        failure = e;
+      }
+    }
+    return null;
+  }
+
+  @SuppressWarnings("signature") // ASM is not annotated yet
+  private AnnotationFieldType fieldType(Type type)
+      throws ClassNotFoundException {
+    switch (type.getSort()) {
+    case Type.BOOLEAN:
+      return BasicAFT.forType(boolean.class);
+    case Type.CHAR:
+      return BasicAFT.forType(char.class);
+    case Type.BYTE:
+      return BasicAFT.forType(byte.class);
+    case Type.SHORT:
+      return BasicAFT.forType(short.class);
+    case Type.INT:
+      return BasicAFT.forType(int.class);
+    case Type.FLOAT:
+      return BasicAFT.forType(float.class);
+    case Type.LONG:
+      return BasicAFT.forType(long.class);
+    case Type.DOUBLE:
+      return BasicAFT.forType(double.class);
+    case Type.ARRAY:
+      // annotation elements are at most one-dimensional arrays
+      return new ArrayAFT((ScalarAFT) fieldType(type.getElementType()));
+    default:
+      String className = type.getClassName();
+      if (className.equals("java.lang.String")) {
+        return BasicAFT.forType(String.class);
+      } else if (className.equals("java.lang.Class")) {
+        return ClassTokenAFT.ctaft;
+      }
+      ClassReader cr = new ClassReader(classBytes(className, provider));
+      if ((cr.readUnsignedShort(cr.header) & Opcodes.ACC_ANNOTATION) != 0) {
+        return new AnnotationAFT(getAnnotationDef(className, provider));
+      }
+      return new EnumAFT(className);
+    }
+  }
+
+  private static byte[] classBytes(@BinaryName String name,
+      ClassBytesProvider provider) throws ClassNotFoundException {
+    try {
+      byte[] b = provider.getClassBytes(name);
+      if (b == null && provider != ClassBytesProvider.SYSTEM) {
+        b = ClassBytesProvider.SYSTEM.getClassBytes(name);
+      }
+      if (b != null) {
+        return b;
+      }
+    } catch (IOException e) {
+      throw new ClassNotFoundException(name, e);
+    }
+    throw new ClassNotFoundException(name);
+  }
+
+  /**
+   * Reads the runtime-visible annotations of a class, and nothing else.
+   * As with reflection, annotations whose types cannot be found are
+   * skipped.
+   */
+  private static class MetaAnnotationReader extends ClassAnnotationSceneReader {
+    private final ClassBytesProvider provider;
+
+    MetaAnnotationReader(ClassReader classReader, AScene scene,
+        ClassBytesProvider provider) {
+      super(classReader, scene, false, provider);
+      this.provider = provider;
+    }
+
+    @Override
+    @SuppressWarnings("signature") // ASM is not annotated yet
+    public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+      // the reader does not accept a null annotation visitor
+      if (!visible) {
+        return new EmptyVisitor();
+      }
+      try {
+        getAnnotationDef(Type.getType(descriptor).getClassName(), provider);
+      } catch (ClassNotFoundException e) {
+        return new EmptyVisitor();
+      }
+      return super.visitAnnotation(descriptor, visible);
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name,
+        String descriptor, String signature, String[] exceptions) {
+      return null;
+    }
+
+    @Override
+    public FieldVisitor visitField(int access, String name,
+        String descriptor, String signature, Object value) {
+      return null;
+    }
+  }
+}
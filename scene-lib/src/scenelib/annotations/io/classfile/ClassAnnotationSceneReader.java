@@ -74,19 +74,9 @@ extends EmptyVisitor {
 
   private final ClassReader classReader;
 
-  /**
-   * Holds definitions we've seen so far.  Maps from annotation name to
-   * the definition itself.  Maps from both the qualified name and the
-   * unqualified name.  If the unqualified name is not unique, it maps
-   * to null and the qualified name should be used instead. */
-  private final Map<String, AnnotationDef> annotationDefinitions = initialiseAnnotationDefinitions();
-  private static Map<String,AnnotationDef> initialiseAnnotationDefinitions() {
-    Map<String,AnnotationDef> result = new HashMap<>();
-    for (AnnotationDef ad : Annotations.standardDefs) {
-      result.put(ad.name, ad);
-    }
-    return result;
-  }
+  // Where to look for the class files of annotation types, before looking
+  // on the system classpath.
+  private final ClassBytesProvider annotationProvider;
 
   /**
    * Constructs a new <code> ClassAnnotationSceneReader </code> that will
@@ -101,9 +91,29 @@ extends EmptyVisitor {
    */
   public ClassAnnotationSceneReader(ClassReader classReader, AScene scene,
       boolean ignoreBridgeMethods) {
+    this(classReader, scene, ignoreBridgeMethods, ClassBytesProvider.SYSTEM);
+  }
+
+  /**
+   * Constructs a new <code> ClassAnnotationSceneReader </code> that will
+   * insert all the annotations in the class that it visits into
+   * <code>scene</code>, reading the definitions of annotation types from
+   * the class files that <code>annotationProvider</code> finds.
+   *
+   * @param classReader the reader for the class to visit
+   * @param scene the annotation scene into which annotations this visits
+   *  will be inserted
+   * @param ignoreBridgeMethods whether to omit annotations on
+   *  compiler-generated methods
+   * @param annotationProvider where to look for annotation types, before
+   *  looking on the system classpath
+   */
+  public ClassAnnotationSceneReader(ClassReader classReader, AScene scene,
+      boolean ignoreBridgeMethods, ClassBytesProvider annotationProvider) {
     this.classReader = classReader;
     this.scene = scene;
     this.ignoreBridgeMethods = ignoreBridgeMethods;
+    this.annotationProvider = annotationProvider;
   }
 
   /**
@@ -166,6 +176,72 @@ extends EmptyVisitor {
     return new MethodAnnotationSceneReader(name, descriptor, signature, aMethod);
   }
 
+  /**
+   * Returns true if the <code>Code</code> attribute of some method of the
+   * given class holds type annotations, such as annotations on casts or
+   * local variables.  If not, nothing that this reader records is inside
+   * method bodies, and the class can be read with
+   * {@link ClassReader#SKIP_CODE}.  Only the attribute tables are examined;
+   * no instructions are decoded.
+   *
+   * @param classReader the reader for the class
+   * @return true if a method body of the class holds type annotations
+   */
+  public static boolean hasCodeAnnotations(ClassReader classReader) {
+    // long enough for "RuntimeInvisibleTypeAnnotations"
+    char[] buf = new char[32];
+    int u = classReader.header + 6;
+    u += 2 + 2 * classReader.readUnsignedShort(u);  // interfaces
+    int n = classReader.readUnsignedShort(u);  // fields
+    u += 2;
+    for (; n > 0; --n) {
+      int attrCount = classReader.readUnsignedShort(u + 6);
+      u += 8;
+      for (; attrCount > 0; --attrCount) {
+        u += 6 + classReader.readInt(u + 2);
+      }
+    }
+    n = classReader.readUnsignedShort(u);  // methods
+    u += 2;
+    for (; n > 0; --n) {
+      int attrCount = classReader.readUnsignedShort(u + 6);
+      u += 8;
+      for (; attrCount > 0; --attrCount) {
+        if ("Code".equals(attributeName(classReader, u, buf))) {
+          // skip max_stack, max_locals, the code and the exception table
+          int v = u + 10;
+          v += 4 + classReader.readInt(v);
+          v += 2 + 8 * classReader.readUnsignedShort(v);
+          int codeAttrCount = classReader.readUnsignedShort(v);
+          v += 2;
+          for (; codeAttrCount > 0; --codeAttrCount) {
+            String name = attributeName(classReader, v, buf);
+            if ("RuntimeVisibleTypeAnnotations".equals(name)
+                || "RuntimeInvisibleTypeAnnotations".equals(name)) {
+              return true;
+            }
+            v += 6 + classReader.readInt(v + 2);
+          }
+        }
+        u += 6 + classReader.readInt(u + 2);
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the name of the attribute at the given offset, or null if the
+   * name is longer than the buffer.
+   */
+  private static String attributeName(ClassReader classReader, int offset,
+      char[] buf) {
+    int item = classReader.getItem(classReader.readUnsignedShort(offset));
+    if (classReader.readUnsignedShort(item) > buf.length) {
+      return null;
+    }
+    return classReader.readUTF8(offset, buf);
+  }
+
   /** Converts JVML format to Java format.
    * @param descriptor class name in JVML format
    * @return the class name in ClassGetName format
@@ -248,21 +324,17 @@ extends EmptyVisitor {
     //   }
     // }
 
-    @SuppressWarnings("unchecked")
     private AnnotationDef getAnnotationDef(String jvmlClassName) {
-      String annoTypeName = classDescToName(jvmlClassName);
-      // It would be better to not require the .class file to be on the
-      // classpath, but to search for it on a path that is passed to this
-      // program.
-      Class<? extends java.lang.annotation.Annotation> annoClass;
+      @SuppressWarnings("signature:assignment.type.incompatible") // not an array, so ClassGetName => BinaryName
+      @BinaryName String annoTypeName = classDescToName(jvmlClassName);
+      // The definition is read from the annotation type's class file, which
+      // need not be on the classpath if annotationProvider can find it.
       try {
-        annoClass = (Class<? extends java.lang.annotation.Annotation>) Class.forName(annoTypeName);
+        return AnnotationDefReader.getAnnotationDef(annoTypeName, annotationProvider);
       } catch (ClassNotFoundException e) {
         // This is an internal JDK annotation such as jdk.Profile+Annotation .
         if (annoTypeName.contains("+")) {
-          @SuppressWarnings("signature:assignment.type.incompatible") // special annotation with "+" in name
-            @BinaryName String annoTypeName2 = annoTypeName;
-          return Annotations.createValueAnnotationDef(annoTypeName2,
+          return Annotations.createValueAnnotationDef(annoTypeName,
               Annotations.noAnnotations, BasicAFT.forType(int.class),
                                                       String.format("Could not find class %s: %s",
                                                                     jvmlClassName, e.getMessage()));
@@ -271,11 +343,6 @@ extends EmptyVisitor {
         printClasspath();
         throw new Error(e);
       }
-
-      @SuppressWarnings("signature:argument.type.incompatible")  // no an array, so ClassGetName => BinaryName
-      AnnotationDef ad = AnnotationDef.fromClass(annoClass, annotationDefinitions);
-
-      return ad;
     }
 
 
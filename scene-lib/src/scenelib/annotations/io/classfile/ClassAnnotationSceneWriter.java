@@ -6,6 +6,7 @@ package scenelib.annotations.io.classfile;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -101,6 +102,13 @@ public class ClassAnnotationSceneWriter extends ClassAdapter {
    */
   private AClass aClass;
 
+  /**
+   * Empty elements for the class, fields and methods that the scene has
+   * no entry for.  The scene may be shared by writers on other threads, so
+   * it is only read, never vivified.
+   */
+  private final AScene absent = new AScene();
+
   /**
    * A list of annotations on this class that this has already visited
    *  in the class file.
@@ -118,6 +126,9 @@ public class ClassAnnotationSceneWriter extends ClassAdapter {
    */
   private final boolean overwrite;
 
+  // offsets of the invokedynamic instructions that create constructor
+  // references and lambda expressions, for just those methods whose
+  // member reference or call annotations need to tell them apart
   private final Map<String, Set<Integer>> dynamicConstructors;
   private final Map<String, Set<Integer>> lambdaExpressions;
 
@@ -161,11 +172,14 @@ public class ClassAnnotationSceneWriter extends ClassAdapter {
   @Override
   public void visit(int version, int access, String name,
       String signature, String superName, String[] interfaces) {
-    classReader.accept(new MethodCodeIndexer(), false);
     super.visit(version, access, name, signature, superName, interfaces);
     // class files store fully quantified class names with '/' instead of '.'
     name = name.replace('/', '.');
-    aClass = scene.classes.getVivify(name);
+    aClass = scene.classes.get(name);
+    if (aClass == null) {
+      aClass = absent.classes.getVivify(name);
+    }
+    indexInvokeDynamics();
   }
 
   @Override
@@ -188,12 +202,20 @@ public class ClassAnnotationSceneWriter extends ClassAdapter {
   public MethodVisitor visitMethod(int access, String name, String descriptor,
       String signature, String[] exceptions) {
     ensureVisitSceneClassAnnotations();
+    MethodVisitor mv =
+        super.visitMethod(access, name, descriptor, signature, exceptions);
+    AMethod aMethod = aClass.methods.get(name + descriptor);
+    if (aMethod == null || aMethod.isEmpty()) {
+      // Nothing to insert: returning the writer's own visitor lets
+      //  ClassReader copy the method's bytes unchanged instead of
+      //  decoding and re-encoding every instruction.
+      return mv;
+    }
     // MethodAnnotationSceneWriter ensures that the method visits all
     //  its annotations in the scene.
     // MethodAdapter is used here only for getting around an unsound
     //  "optimization" in ClassReader.
-    return new MethodAdapter(new MethodAnnotationSceneWriter(name, descriptor,
-            super.visitMethod(access, name, descriptor, signature, exceptions)));
+    return new MethodAdapter(new MethodAnnotationSceneWriter(name, descriptor, mv));
   }
 
   @Override
@@ -227,6 +249,28 @@ public class ClassAnnotationSceneWriter extends ClassAdapter {
         super.visitTypeAnnotation(descriptor, visible, inCode));
   }
 
+  /**
+   * Returns the scene's representation of a field of this class, or an
+   * empty one if the scene has none.
+   */
+  private AField field(String name) {
+    AField aField = aClass.fields.get(name);
+    return aField != null ? aField
+        : absent.classes.getVivify(aClass.className).fields.getVivify(name);
+  }
+
+  /**
+   * Returns the scene's representation of a method of this class, or an
+   * empty one if the scene has none.
+   *
+   * @param methodKey the name and descriptor of the method
+   */
+  private AMethod method(String methodKey) {
+    AMethod aMethod = aClass.methods.get(methodKey);
+    return aMethod != null ? aMethod
+        : absent.classes.getVivify(aClass.className).methods.getVivify(methodKey);
+  }
+
   /**
    * Have this class visit the annotations in scene if and only if it has not
    * already visited them.
@@ -487,7 +531,7 @@ public class ClassAnnotationSceneWriter extends ClassAdapter {
     public FieldAnnotationSceneWriter(String name, FieldVisitor fv) {
       this.fv = fv;
       this.existingFieldAnnotations = new ArrayList<String>();
-      this.aField = aClass.fields.getVivify(name);
+      this.aField = field(name);
     }
 
     @Override
@@ -618,7 +662,7 @@ public class ClassAnnotationSceneWriter extends ClassAdapter {
     MethodAnnotationSceneWriter(String name, String descriptor, MethodVisitor mv) {
       super(mv);
       this.hasVisitedMethodAnnotations = false;
-      this.aMethod = aClass.methods.getVivify(name + descriptor);
+      this.aMethod = method(name + descriptor);
       this.existingMethodAnnotations = new ArrayList<>();
     }
 
@@ -1307,12 +1351,34 @@ public class ClassAnnotationSceneWriter extends ClassAdapter {
     }
   }
 
+  /**
+   * Records the invokedynamic offsets of the methods whose member reference
+   * or method invocation annotations in scene depend on them.  Only those
+   * methods' code is decoded, and if there are none, the class is not
+   * read at all; every other method body is read just once, by the pass
+   * that writes the class.
+   */
+  private void indexInvokeDynamics() {
+    Set<String> methodNames = new HashSet<>();
+    for (Map.Entry<String, AMethod> entry : aClass.methods.entrySet()) {
+      ABlock body = entry.getValue().body;
+      if (!body.refs.isEmpty() || !body.calls.isEmpty()) {
+        methodNames.add(entry.getKey());
+      }
+    }
+    if (!methodNames.isEmpty()) {
+      classReader.accept(new MethodCodeIndexer(methodNames), false);
+    }
+  }
+
   class MethodCodeIndexer extends EmptyVisitor {
     private int codeStart = 0;
+    private final Set<String> methodNames;  // the methods to index
     Set<Integer> constrs;  // distinguishes constructors from methods
     Set<Integer> lambdas;  // distinguishes lambda exprs from member refs
 
-    MethodCodeIndexer() {
+    MethodCodeIndexer(Set<String> methodNames) {
+      this.methodNames = methodNames;
       int fieldCount;
       // const pool size is (not lowest) upper bound of string length
       codeStart = classReader.header + 6;
@@ -1355,6 +1421,10 @@ public class ClassAnnotationSceneWriter extends ClassAdapter {
     public MethodVisitor visitMethod(int access,
         String name, String descriptor, String signature, String[] exceptions) {
       String methodDescription = name + descriptor;
+      if (!methodNames.contains(methodDescription)) {
+        // returning null keeps the reader from decoding the method's code
+        return null;
+      }
       constrs = dynamicConstructors.get(methodDescription);
       if (constrs == null) {
         constrs = new TreeSet<>();
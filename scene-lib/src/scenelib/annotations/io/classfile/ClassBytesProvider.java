@@ -0,0 +1,337 @@
+package scenelib.annotations.io.classfile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.objectweb.asmx.ClassReader;
+
+/**
+ * A source of class file contents, looked up by fully-qualified class name
+ * (such as {@code a.b.C} or {@code a.b.C$D}).  Use a provider instead of
+ * {@link ClassReader#ClassReader(String)}, which always goes through the
+ * system class loader, to read classes from explicitly given directories,
+ * jar files and jmod files.
+ *
+ * <p>Jar and jmod providers index the names of the classes in the archive
+ * once, when they are created; {@link #cached} bounds the number of class
+ * files kept in memory.  Providers are safe for use by several threads.
+ */
+public abstract class ClassBytesProvider implements Closeable {
+
+  /** Looks classes up through the system class loader. */
+  public static final ClassBytesProvider SYSTEM = new ClassBytesProvider() {
+    @Override
+    public byte[] getClassBytes(String className) throws IOException {
+      InputStream in = ClassLoader.getSystemResourceAsStream(
+          className.replace('.', '/') + ".class");
+      if (in == null) {
+        return null;
+      }
+      try {
+        return readFully(in, -1);
+      } finally {
+        in.close();
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "system class loader";
+    }
+  };
+
+  /**
+   * Returns the contents of the class file for the given class.
+   *
+   * @param className the fully-qualified name of the class
+   * @return the class file's bytes, or null if the class is not found
+   * @throws IOException if the class file cannot be read
+   */
+  public abstract byte[] getClassBytes(String className) throws IOException;
+
+  /**
+   * Returns a reader for the class file for the given class.
+   *
+   * @param className the fully-qualified name of the class
+   * @return a reader for the class
+   * @throws IOException if the class is not found or cannot be read
+   */
+  public ClassReader getClassReader(String className) throws IOException {
+    byte[] b = getClassBytes(className);
+    if (b == null) {
+      throw new IOException("Class not found: " + className + " in " + this);
+    }
+    return new ClassReader(b);
+  }
+
+  /** Releases any files held open by this provider. */
+  @Override
+  public void close() throws IOException {}
+
+  /**
+   * Returns a provider for the class files below a directory, laid out by
+   * package as on a classpath.
+   *
+   * @param dir the root directory
+   * @return a provider for the classes in {@code dir}
+   */
+  public static ClassBytesProvider forDirectory(final File dir) {
+    return new ClassBytesProvider() {
+      @Override
+      public byte[] getClassBytes(String className) throws IOException {
+        File f = new File(dir, className.replace('.', File.separatorChar) + ".class");
+        return f.isFile() ? Files.readAllBytes(f.toPath()) : null;
+      }
+
+      @Override
+      public String toString() {
+        return dir.getPath();
+      }
+    };
+  }
+
+  /**
+   * Returns a provider for the classes in a jar file.  The jar is kept open
+   * until the provider is closed.
+   *
+   * @param jar the jar file
+   * @return a provider for the classes in {@code jar}
+   * @throws IOException if the jar file cannot be opened
+   */
+  public static ClassBytesProvider forJar(File jar) throws IOException {
+    return new ZipProvider(new ZipFile(jar), "");
+  }
+
+  /**
+   * Returns a provider for the classes in a jmod file.  The jmod is kept
+   * open until the provider is closed.
+   *
+   * @param jmod the jmod file
+   * @return a provider for the classes in {@code jmod}
+   * @throws IOException if the jmod file cannot be opened
+   */
+  public static ClassBytesProvider forJmod(File jmod) throws IOException {
+    // A jmod file is a zip file after a 4-byte header, which ZipFile
+    // skips; its classes are under "classes/".
+    return new ZipProvider(new ZipFile(jmod), "classes/");
+  }
+
+  /**
+   * Returns a provider for one classpath element: a directory, or a jar,
+   * zip or jmod file.
+   *
+   * @param file the classpath element
+   * @return a provider for the classes in {@code file}
+   * @throws IOException if {@code file} does not exist or cannot be opened
+   */
+  public static ClassBytesProvider forFile(File file) throws IOException {
+    if (file.isDirectory()) {
+      return forDirectory(file);
+    } else if (!file.isFile()) {
+      throw new IOException("No such file or directory: " + file);
+    } else if (file.getName().endsWith(".jmod")) {
+      return forJmod(file);
+    } else {
+      return forJar(file);
+    }
+  }
+
+  /**
+   * Returns a provider for a classpath, given as directories and jar, zip
+   * or jmod files separated by {@link File#pathSeparator}.  As for the JVM,
+   * a class is read from the first element that contains it, and elements
+   * that do not exist are ignored.
+   *
+   * @param classPath the classpath
+   * @return a provider for the classes on {@code classPath}
+   * @throws IOException if an archive on the classpath cannot be opened
+   */
+  public static ClassBytesProvider forClassPath(String classPath)
+      throws IOException {
+    List<ClassBytesProvider> providers = new ArrayList<>();
+    for (String element : classPath.split(File.pathSeparator)) {
+      if (!element.isEmpty() && new File(element).exists()) {
+        providers.add(forFile(new File(element)));
+      }
+    }
+    return composite(providers);
+  }
+
+  /**
+   * Returns a provider that tries each of the given providers in order.
+   *
+   * @param providers the providers to consult
+   * @return a provider that reads each class from the first of
+   *  {@code providers} that has it
+   */
+  public static ClassBytesProvider composite(
+      final List<ClassBytesProvider> providers) {
+    return new ClassBytesProvider() {
+      @Override
+      public byte[] getClassBytes(String className) throws IOException {
+        for (ClassBytesProvider p : providers) {
+          byte[] b = p.getClassBytes(className);
+          if (b != null) {
+            return b;
+          }
+        }
+        return null;
+      }
+
+      @Override
+      public void close() throws IOException {
+        IOException failure = null;
+        for (ClassBytesProvider p : providers) {
+          try {
+            p.close();
+          } catch (IOException e) {
+            failure = e;
+          }
+        }
+        if (failure != null) {
+          throw failure;
+        }
+      }
+
+      @Override
+      public String toString() {
+        return providers.toString();
+      }
+    };
+  }
+
+  /**
+   * Returns a provider that keeps the most recently used class files of
+   * another provider in memory.  Callers must not modify the returned
+   * arrays.
+   *
+   * @param provider the provider to read classes from
+   * @param maxClasses the number of class files to keep
+   * @return a caching provider
+   */
+  public static ClassBytesProvider cached(final ClassBytesProvider provider,
+      final int maxClasses) {
+    return new ClassBytesProvider() {
+      private final Map<String, byte[]> cache = Collections.synchronizedMap(
+          new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+            private static final long serialVersionUID = 20201017L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                Map.Entry<String, byte[]> eldest) {
+              return size() > maxClasses;
+            }
+          });
+
+      @Override
+      public byte[] getClassBytes(String className) throws IOException {
+        byte[] b = cache.get(className);
+        if (b == null) {
+          // Read outside the lock; a duplicate read is harmless.
+          b = provider.getClassBytes(className);
+          if (b != null) {
+            cache.put(className, b);
+          }
+        }
+        return b;
+      }
+
+      @Override
+      public void close() throws IOException {
+        cache.clear();
+        provider.close();
+      }
+
+      @Override
+      public String toString() {
+        return provider.toString();
+      }
+    };
+  }
+
+  /** The classes in a jar or jmod file. */
+  private static class ZipProvider extends ClassBytesProvider {
+    private final ZipFile zip;
+    // map from class name to the zip entry holding the class
+    private final Map<String, ZipEntry> entries = new HashMap<>();
+
+    ZipProvider(ZipFile zip, String prefix) {
+      this.zip = zip;
+      Enumeration<? extends ZipEntry> e = zip.entries();
+      while (e.hasMoreElements()) {
+        ZipEntry entry = e.nextElement();
+        String name = entry.getName();
+        if (name.startsWith(prefix) && name.endsWith(".class")
+            && !entry.isDirectory()) {
+          String className = name.substring(prefix.length(),
+              name.length() - ".class".length()).replace('/', '.');
+          entries.put(className, entry);
+        }
+      }
+    }
+
+    @Override
+    public byte[] getClassBytes(String className) throws IOException {
+      ZipEntry entry = entries.get(className);
+      if (entry == null) {
+        return null;
+      }
+      InputStream in = zip.getInputStream(entry);
+      try {
+        return readFully(in, (int) entry.getSize());
+      } finally {
+        in.close();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      zip.close();
+    }
+
+    @Override
+    public String toString() {
+      return zip.getName();
+    }
+  }
+
+  /**
+   * Reads a stream to its end.
+   *
+   * @param in the stream to read
+   * @param size the number of bytes in the stream, or -1 if unknown
+   */
+  private static byte[] readFully(InputStream in, int size) throws IOException {
+    if (size >= 0) {
+      byte[] b = new byte[size];
+      int n = 0;
+      while (n < size) {
+        int r = in.read(b, n, size - n);
+        if (r < 0) {
+          throw new IOException("Truncated class file");
+        }
+        n += r;
+      }
+      return b;
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[8192];
+    for (int r; (r = in.read(buf)) >= 0; ) {
+      out.write(buf, 0, r);
+    }
+    return out.toByteArray();
+  }
+}
@@ -1,6 +1,25 @@
 package scenelib.annotations.io.classfile;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import com.sun.tools.javac.main.CommandLine;
 
@@ -9,7 +28,9 @@ import org.plumelib.options.Options;
 
 import org.objectweb.asmx.ClassReader;
 
+import scenelib.annotations.el.AClass;
 import scenelib.annotations.el.AScene;
+import scenelib.annotations.el.DefException;
 import scenelib.annotations.io.IndexFileWriter;
 
 /**
@@ -31,6 +52,15 @@ public class ClassFileReader {
   @Option("print progress messages")
   public static boolean verbose = false;
 
+  @Option("read classes from the given path of directories, jars and jmods instead of the JVM classpath")
+  public static String class_path = null;
+
+  @Option("the arguments are jar files or class directories, all of whose annotations are written to the given index file")
+  public static String output = null;
+
+  @Option("number of threads for reading the classes of jar files and class directories")
+  public static int threads = Runtime.getRuntime().availableProcessors();
+
   private static String linesep = System.getProperty("line.separator");
 
   static String usage
@@ -44,7 +74,13 @@ public class ClassFileReader {
     + linesep
     + "single '@' are interpreted as argument files to be read and expanded into"
     + linesep
-    + "the command line.  A few options are available only when invoked via the"
+    + "the command line.  With --output=all.jaif, each argument is instead a jar"
+    + linesep
+    + "file or a directory of class files, and the annotations of all the classes"
+    + linesep
+    + "in them are printed to all.jaif ."
+    + linesep
+    + "A few options are available only when invoked via the"
     + linesep
     + "script extract-annotations, not when invoked as a Java program:"
     + linesep
@@ -103,6 +139,16 @@ public class ClassFileReader {
       System.exit(-1);
     }
 
+    if (output != null) {
+      try {
+        readBulk(file_args);
+      } catch (IOException e) {
+        System.out.printf("IOException: %s%n", e.getMessage());
+        System.exit(1);
+      }
+      return;
+    }
+
     // check args for well-formed names
     for (String arg : file_args) {
       if (!checkClass(arg)) {
@@ -110,42 +156,271 @@ public class ClassFileReader {
       }
     }
 
-    for (String origName : file_args) {
-      if (verbose) {
-        System.out.println("reading: " + origName);
+    ClassBytesProvider provider = class_path == null
+        ? ClassBytesProvider.SYSTEM
+        : ClassBytesProvider.forClassPath(class_path);
+
+    try {
+      for (String origName : file_args) {
+        if (verbose) {
+          System.out.println("reading: " + origName);
+        }
+        String className = origName;
+        if (origName.endsWith(".class")) {
+            origName = origName.replace(".class", "");
+        }
+
+        AScene scene = new AScene();
+        try {
+          if (className.endsWith(".class")) {
+            read(scene, className);
+          } else {
+            readFromClass(scene, className, provider);
+          }
+          String outputFile = origName + ".jaif";
+          if (verbose) {
+            System.out.println("printing results to : " + outputFile);
+          }
+          IndexFileWriter.write(scene, outputFile);
+        } catch (IOException e) {
+          System.out.println("There was an error in reading class: " + origName);
+          System.out.println(
+              "Did you ensure that this class is on your classpath?");
+          return;
+        } catch (Exception e) {
+          System.out.println("Unknown error trying to extract annotations from: " +
+              origName);
+          System.out.println(e.getMessage());
+          e.printStackTrace();
+          System.out.println("Please submit a bug report at");
+          System.out.println("  https://github.com/typetools/annotation-tools/issues");
+          System.out.println("Be sure to include a copy of the output trace, instructions on how");
+          System.out.println("to reproduce this error, and all input files.  Thanks!");
+          return;
+        }
       }
-      String className = origName;
-      if (origName.endsWith(".class")) {
-          origName = origName.replace(".class", "");
+    } finally {
+      provider.close();
+    }
+  }
+
+  /**
+   * Reads the annotations of all classes in the given jar files and class
+   * directories, and writes them to the index file {@link #output}.  Prints
+   * the number of classes read and the time taken by each phase.
+   */
+  private static void readBulk(String[] inputs) throws IOException {
+    long start = System.nanoTime();
+    AScene scene = new AScene();
+    long[] counts = readAll(scene, inputs, threads);
+    long readTime = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    if (verbose) {
+      System.out.println("printing results to : " + output);
+    }
+    try {
+      IndexFileWriter.write(scene, output);
+    } catch (DefException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+    long writeTime = System.nanoTime() - start;
+
+    double seconds = Math.max(readTime, 1) / 1e9;
+    System.out.printf("Read %d classes (%d KB) in %d ms (%.0f classes/s, %.1f MB/s);"
+        + " wrote %d classes to %s in %d ms%n",
+        counts[0], counts[1] / 1024, readTime / 1000000, counts[0] / seconds,
+        counts[1] / seconds / (1024 * 1024), scene.classes.size(), output,
+        writeTime / 1000000);
+  }
+
+  /**
+   * Reads the annotations of all classes in the given jar files and class
+   * directories into <code> scene </code>, using <code> threads </code>
+   * worker threads.  Each worker reads into a scene of its own; once all
+   * classes have been read, the classes that have annotations are added to
+   * <code> scene </code>, sorted by name.  Since the classes are not merged,
+   * each may be in only one of the inputs, and must not be in
+   * <code> scene </code> already.  The calling thread reads the
+   * class files, keeping at most a few per worker in memory at a time.
+   * Annotation types are looked for in the inputs, then on
+   * {@link #class_path} if it is set, then on the system classpath.
+   *
+   * @param scene the scene into which the annotations should be inserted
+   * @param inputs jar files and directories laid out by package, as on a
+   * classpath
+   * @param threads the number of worker threads
+   * @return the number of classes read and their total size in bytes
+   * @throws IOException if there is a problem reading one of the inputs,
+   * or if a class is found twice or is already in <code> scene </code>
+   */
+  public static long[] readAll(AScene scene, String[] inputs, int threads)
+      throws IOException {
+    List<ClassBytesProvider> providers = new ArrayList<>();
+    for (String input : inputs) {
+      providers.add(ClassBytesProvider.forFile(new File(input)));
+    }
+    if (class_path != null) {
+      providers.add(ClassBytesProvider.forClassPath(class_path));
+    }
+    ClassBytesProvider annotationProvider = ClassBytesProvider.composite(providers);
+    BulkReader reader = new BulkReader(threads, annotationProvider, scene);
+    try {
+      for (String input : inputs) {
+        if (verbose) {
+          System.out.println("reading: " + input);
+        }
+        File file = new File(input);
+        if (file.isDirectory()) {
+          reader.readDirectory(file);
+        } else {
+          reader.readJar(file);
+        }
       }
+      reader.finish();
+    } finally {
+      reader.executor.shutdownNow();
+      annotationProvider.close();
+    }
+
+    // All tasks are done, so the workers' scenes are no longer modified.
+    // Each class was read by one worker only, so no two scenes hold the
+    // same class.
+    // Reading a class vivifies all of its members, annotated or not, so
+    // prune before deciding whether the class has annotations.
+    Map<String, AClass> merged = new TreeMap<>();
+    for (AScene s : reader.workerScenes) {
+      for (AClass aClass : s.classes.values()) {
+        aClass.prune();
+        if (!aClass.isEmpty()) {
+          merged.put(aClass.className, aClass);
+        }
+      }
+    }
+    scene.classes.putAll(merged);
+    return new long[] {reader.classes, reader.bytes};
+  }
 
-      AScene scene = new AScene();
+  /**
+   * Hands class files to a pool of workers, each of which reads the
+   * annotations of its classes into a scene of its own.
+   */
+  private static class BulkReader {
+    final ExecutorService executor;
+    final List<AScene> workerScenes =
+        Collections.synchronizedList(new ArrayList<AScene>());
+    private final ThreadLocal<AScene> workerScene = new ThreadLocal<AScene>() {
+      @Override
+      protected AScene initialValue() {
+        AScene s = new AScene();
+        workerScenes.add(s);
+        return s;
+      }
+    };
+    // classes handed to the workers and not yet known to be done
+    private final Deque<Future<Void>> pending = new ArrayDeque<>();
+    private final int maxPending;
+    private final ClassBytesProvider annotationProvider;
+    // the scene the classes will be added to, which must not have them yet
+    private final AScene scene;
+    // the names of the classes handed to the workers
+    private final Set<String> names = new HashSet<>();
+    long classes = 0;
+    long bytes = 0;
+
+    BulkReader(int threads, ClassBytesProvider annotationProvider,
+        AScene scene) {
+      this.annotationProvider = annotationProvider;
+      this.scene = scene;
+      executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+      maxPending = 4 * Math.max(threads, 1);
+    }
+
+    void readJar(File jar) throws IOException {
+      ZipFile zip = new ZipFile(jar);
       try {
-        if (className.endsWith(".class")) {
-          read(scene, className);
-        } else {
-          readFromClass(scene, className);
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+          ZipEntry entry = entries.nextElement();
+          if (isClassFile(entry.getName()) && !entry.isDirectory()) {
+            InputStream in = zip.getInputStream(entry);
+            try {
+              add(new ClassReader(in));
+            } finally {
+              in.close();
+            }
+          }
         }
-        String outputFile = origName + ".jaif";
-        if (verbose) {
-          System.out.println("printing results to : " + outputFile);
+      } finally {
+        zip.close();
+      }
+    }
+
+    void readDirectory(File dir) throws IOException {
+      File[] files = dir.listFiles();
+      if (files == null) {
+        throw new IOException("Cannot list directory " + dir);
+      }
+      Arrays.sort(files);
+      for (File f : files) {
+        if (f.isDirectory()) {
+          readDirectory(f);
+        } else if (isClassFile(f.getName())) {
+          add(new ClassReader(Files.readAllBytes(f.toPath())));
         }
-        IndexFileWriter.write(scene, outputFile);
-      } catch (IOException e) {
-        System.out.println("There was an error in reading class: " + origName);
-        System.out.println(
-            "Did you ensure that this class is on your classpath?");
-        return;
-      } catch (Exception e) {
-        System.out.println("Unknown error trying to extract annotations from: " +
-            origName);
-        System.out.println(e.getMessage());
-        e.printStackTrace();
-        System.out.println("Please submit a bug report at");
-        System.out.println("  https://github.com/typetools/annotation-tools/issues");
-        System.out.println("Be sure to include a copy of the output trace, instructions on how");
-        System.out.println("to reproduce this error, and all input files.  Thanks!");
-        return;
+      }
+    }
+
+    private static boolean isClassFile(String name) {
+      // module descriptors and multi-release variants are not classes of
+      // their own
+      return name.endsWith(".class") && !name.endsWith("module-info.class")
+          && !name.startsWith("META-INF/");
+    }
+
+    private void add(final ClassReader classReader) throws IOException {
+      String name = classReader.getClassName().replace('/', '.');
+      if (!names.add(name)) {
+        throw new IOException("Class " + name + " found more than once");
+      }
+      if (scene.classes.containsKey(name)) {
+        throw new IOException("Class " + name + " is already in the scene");
+      }
+      classes++;
+      bytes += classReader.b.length;
+      pending.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() {
+          read(workerScene.get(), classReader, annotationProvider);
+          return null;
+        }
+      }));
+      while (pending.size() > maxPending) {
+        await(pending.remove());
+      }
+    }
+
+    /** Waits for all classes handed to the workers to be read. */
+    void finish() throws IOException {
+      while (!pending.isEmpty()) {
+        await(pending.remove());
+      }
+    }
+
+    private static void await(Future<Void> future) throws IOException {
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while reading classes");
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw new Error(cause);
       }
     }
   }
@@ -193,7 +468,22 @@ public class ClassFileReader {
    * @throws IOException if there is a problem reading <code> className </code>
    */
   public static void readFromClass(AScene scene, String className) throws IOException {
-    read(scene, new ClassReader(className));
+    readFromClass(scene, className, ClassBytesProvider.SYSTEM);
+  }
+
+  /**
+   * Reads the annotations from the class <code> className </code>,
+   * as found by <code> provider </code>,
+   * and inserts them into <code> scene </code>.
+   *
+   * @param scene the scene into which the annotations should be inserted
+   * @param className the name of the class to read in
+   * @param provider where to find the class file
+   * @throws IOException if there is a problem reading <code> className </code>
+   */
+  public static void readFromClass(AScene scene, String className,
+      ClassBytesProvider provider) throws IOException {
+    read(scene, provider.getClassReader(className), provider);
   }
 
   /**
@@ -210,7 +500,27 @@ public class ClassFileReader {
   }
 
   public static void read(AScene scene, ClassReader classReader) {
-    ClassAnnotationSceneReader ca = new ClassAnnotationSceneReader(classReader, scene, ignore_bridge_methods);
-    classReader.accept(ca, true);
+    read(scene, classReader, ClassBytesProvider.SYSTEM);
+  }
+
+  /**
+   * Reads the annotations from the class read by <code> classReader </code>
+   * and inserts them into <code> scene </code>.  The definitions of the
+   * annotation types are read from the class files that
+   * <code> provider </code> finds, or else from the system classpath.
+   *
+   * @param scene the scene into which the annotations should be inserted
+   * @param classReader the reader for the class
+   * @param provider where to look for annotation types
+   */
+  public static void read(AScene scene, ClassReader classReader,
+      ClassBytesProvider provider) {
+    ClassAnnotationSceneReader ca = new ClassAnnotationSceneReader(classReader,
+        scene, ignore_bridge_methods, provider);
+    int flags = ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES;
+    if (!ClassAnnotationSceneReader.hasCodeAnnotations(classReader)) {
+      flags |= ClassReader.SKIP_CODE;
+    }
+    classReader.accept(ca, flags);
   }
 }
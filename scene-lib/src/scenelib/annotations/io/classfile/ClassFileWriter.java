@@ -1,6 +1,16 @@
 package scenelib.annotations.io.classfile;
 
 import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 import com.sun.tools.javac.main.CommandLine;
 
@@ -9,6 +19,7 @@ import org.objectweb.asmx.ClassReader;
 import org.plumelib.options.Option;
 import org.plumelib.options.Options;
 
+import scenelib.annotations.el.AClass;
 import scenelib.annotations.el.AScene;
 import scenelib.annotations.io.IndexFileParser;
 
@@ -27,6 +38,18 @@ public class ClassFileWriter {
   @Option("print progress messages")
   public static boolean verbose = false;
 
+  @Option("read classes from the given path of directories, jars and jmods instead of the JVM classpath")
+  public static String class_path = null;
+
+  @Option("annotate every class in the given jar; the arguments are then index files")
+  public static String input_jar = null;
+
+  @Option("write the jar annotated via --input-jar to the given file")
+  public static String output_jar = null;
+
+  @Option("number of threads for annotating the classes of --input-jar")
+  public static int threads = Runtime.getRuntime().availableProcessors();
+
   private static String linesep = System.getProperty("line.separator");
 
   static String usage
@@ -43,9 +66,15 @@ public class ClassFileWriter {
     + linesep
     + "or a path to a .class file, such as e.g. /.../path/to/a/b/C.class ."
     + linesep
+    + "It may also be a path to a .jar file, all of whose classes are annotated."
+    + linesep
     + "Arguments beginning with a single '@' are interpreted as argument files to"
     + linesep
-    + "be read and expanded into the command line.  Options:";
+    + "be read and expanded into the command line."
+    + linesep
+    + "With --input-jar=in.jar --output-jar=out.jar, all arguments are index files;"
+    + linesep
+    + "their annotations are inserted into every class in in.jar.  Options:";
 
   /**
    * Main method meant to a a convenient way to write annotations from an index
@@ -93,6 +122,15 @@ public class ClassFileWriter {
       options.printUsage();
       System.exit(-1);
     }
+    if (input_jar != null) {
+      if (output_jar == null) {
+        System.out.println("--input-jar requires --output-jar.");
+        options.printUsage();
+        System.exit(-1);
+      }
+      insertJarBulk(file_args);
+      return;
+    }
     if (file_args.length % 2 == 1) {
       System.out.println("Must supply an even number of arguments.");
       options.printUsage();
@@ -106,52 +144,99 @@ public class ClassFileWriter {
       }
     }
 
-    for (int i = 0; i < file_args.length; i++) {
-      String className = file_args[i];
-      i++;
-      if (i >= file_args.length) {
-        // This can't happen, because file_args.length has been checked to be even.
-        System.out.println("Error: incorrect number of arguments");
-        System.out.println("Run insert-annotations --help for usage information");
-        return;
-      }
-      String indexFileName = file_args[i];
-
-      AScene scene = new AScene();
-
-      IndexFileParser.parseFile(indexFileName, scene);
+    ClassBytesProvider provider = class_path == null
+        ? ClassBytesProvider.SYSTEM
+        : ClassBytesProvider.forClassPath(class_path);
 
-      // annotations loaded from index file into scene, now insert them
-      // into class file
-      try {
-        if (className.endsWith(".class")) {
-          String fileName = className;
-          if (verbose) {
-            System.out.printf("Adding annotations to class file %s%n", fileName);
-          }
-          insert(scene, fileName, true);
-        } else {
-          String outputFileName = className + ".class";
-          if (verbose) {
-            System.out.printf("Reading class file %s; writing with annotations to %s%n",
-                              className, outputFileName);
+    try {
+      for (int i = 0; i < file_args.length; i++) {
+        String className = file_args[i];
+        i++;
+        if (i >= file_args.length) {
+          // This can't happen, because file_args.length has been checked to be even.
+          System.out.println("Error: incorrect number of arguments");
+          System.out.println("Run insert-annotations --help for usage information");
+          return;
+        }
+        String indexFileName = file_args[i];
+
+        AScene scene = new AScene();
+
+        IndexFileParser.parseFile(indexFileName, scene);
+
+        // annotations loaded from index file into scene, now insert them
+        // into class file
+        try {
+          if (className.endsWith(".jar")) {
+            String jarFileName = className;
+            if (verbose) {
+              System.out.printf("Adding annotations to jar file %s%n", jarFileName);
+            }
+            insertJar(scene, jarFileName, true);
+          } else if (className.endsWith(".class")) {
+            String fileName = className;
+            if (verbose) {
+              System.out.printf("Adding annotations to class file %s%n", fileName);
+            }
+            insert(scene, fileName, true);
+          } else {
+            String outputFileName = className + ".class";
+            if (verbose) {
+              System.out.printf("Reading class file %s; writing with annotations to %s%n",
+                                className, outputFileName);
+            }
+            insert(scene, className, outputFileName, true, provider);
           }
-          insert(scene, className, outputFileName, true);
+        } catch (IOException e) {
+          System.out.printf("IOException: %s%n", e.getMessage());
+          return;
+        } catch (Exception e) {
+          System.out.println("Unknown error trying to insert annotations from: " +
+                             indexFileName + " to " + className);
+          e.printStackTrace();
+          System.out.flush();
+          System.out.println("Please submit a bug report at");
+          System.out.println("  https://github.com/typetools/annotation-tools/issues");
+          System.out.println("Be sure to include a copy of the following output trace, instructions on how");
+          System.out.println("to reproduce this error, and all input files.  Thanks!");
+          return;
         }
-      } catch (IOException e) {
-        System.out.printf("IOException: %s%n", e.getMessage());
-        return;
-      } catch (Exception e) {
-        System.out.println("Unknown error trying to insert annotations from: " +
-                           indexFileName + " to " + className);
-        e.printStackTrace();
-        System.out.flush();
-        System.out.println("Please submit a bug report at");
-        System.out.println("  https://github.com/typetools/annotation-tools/issues");
-        System.out.println("Be sure to include a copy of the following output trace, instructions on how");
-        System.out.println("to reproduce this error, and all input files.  Thanks!");
-        return;
       }
+    } finally {
+      provider.close();
+    }
+  }
+
+  /**
+   * Reads all the given index files into a single scene, then inserts
+   * their annotations into every class of {@link #input_jar}, writing the
+   * result to {@link #output_jar}.
+   */
+  private static void insertJarBulk(String[] indexFileNames) throws IOException {
+    long start = System.nanoTime();
+    AScene scene = new AScene();
+    for (String indexFileName : indexFileNames) {
+      IndexFileParser.parseFile(indexFileName, scene);
+    }
+    if (verbose) {
+      System.out.printf("Read %d index files in %d ms%n", indexFileNames.length,
+                        (System.nanoTime() - start) / 1000000);
+      System.out.printf("Reading jar file %s; writing with annotations to %s%n",
+                        input_jar, output_jar);
+    }
+
+    start = System.nanoTime();
+    InputStream in = new BufferedInputStream(new FileInputStream(input_jar));
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(output_jar));
+    try {
+      insertJar(scene, in, out, true, threads);
+    } finally {
+      in.close();
+      out.close();
+    }
+    if (verbose) {
+      System.out.printf("Annotated %s in %d ms%n", input_jar,
+                        (System.nanoTime() - start) / 1000000);
     }
   }
 
@@ -182,6 +267,10 @@ public class ClassFileWriter {
     ClassReader classReader = new ClassReader(in);
     in.close();
 
+    if (!hasAnnotations(scene, classReader)) {
+      return;  // the file already holds the result
+    }
+
     ClassAnnotationSceneWriter classAnnotationSceneWriter =
       new ClassAnnotationSceneWriter(classReader, scene, overwrite);
     classReader.accept(classAnnotationSceneWriter, false);
@@ -211,13 +300,7 @@ public class ClassFileWriter {
    */
   public static void insert(AScene scene, InputStream input, OutputStream out, boolean overwrite) throws IOException {
     ClassReader classReader = new ClassReader(input);
-
-    ClassAnnotationSceneWriter classAnnotationSceneWriter =
-      new ClassAnnotationSceneWriter(classReader, scene, overwrite);
-
-    classReader.accept(classAnnotationSceneWriter, false);
-
-    out.write(classAnnotationSceneWriter.toByteArray());
+    out.write(insert(scene, classReader, overwrite));
   }
 
   /**
@@ -239,15 +322,268 @@ public class ClassFileWriter {
    */
   public static void insert(AScene scene,
       String className, String outputFileName, boolean overwrite) throws IOException {
-    ClassReader classReader = new ClassReader(className);
+    insert(scene, className, outputFileName, overwrite, ClassBytesProvider.SYSTEM);
+  }
+
+  /**
+   * Inserts the annotations contained in <code> scene </code> into
+   * the class <code> className </code>, as found by <code> provider </code>,
+   * and writes the resulting class file into <code> outputFileName </code>.
+   *
+   * @param scene the scene containing the annotations to insert into a class
+   * @param className the fully qualified class to read
+   * @param outputFileName the name of the output file the class should be written to
+   * @param overwrite controls behavior when an annotation exists on a
+   * particular element in both the scene and the class file.  If true,
+   * then the one from the scene is used; else the the existing annotation
+   * in the class file is retained.
+   * @param provider where to find the class file
+   * @throws IOException if there is a problem reading the class or
+   * writing to <code> outputFileName </code>
+   */
+  public static void insert(AScene scene, String className,
+      String outputFileName, boolean overwrite, ClassBytesProvider provider)
+      throws IOException {
+    ClassReader classReader = provider.getClassReader(className);
+
+    OutputStream fos = new FileOutputStream(outputFileName);
+    fos.write(insert(scene, classReader, overwrite));
+    fos.close();
+  }
+
+  /**
+   * Inserts the annotations contained in <code> scene </code> into
+   * every class file of the jar file <code> jarFileName </code>, and writes
+   * the result back into <code> jarFileName </code>.  Entries are streamed
+   * one at a time, in their original order and with their original
+   * timestamps; entries that are not class files, and classes that have no
+   * annotations in <code> scene </code>, are copied unchanged.
+   *
+   * @param scene the scene containing the annotations to insert
+   * @param jarFileName the name of the jar file to annotate
+   * @param overwrite controls behavior when an annotation exists on a
+   * particular element in both the scene and the class file.  If true,
+   * then the one from the scene is used; else the the existing annotation
+   * in the class file is retained.
+   * @throws IOException if there is a problem reading from or writing to
+   * <code> jarFileName </code>
+   */
+  public static void insertJar(AScene scene, String jarFileName,
+      boolean overwrite) throws IOException {
+    File jarFile = new File(jarFileName);
+    File tmpFile = File.createTempFile(jarFile.getName(), ".tmp",
+        jarFile.getAbsoluteFile().getParentFile());
+    try {
+      InputStream in = new FileInputStream(jarFile);
+      OutputStream out = new FileOutputStream(tmpFile);
+      try {
+        insertJar(scene, in, out, overwrite);
+      } finally {
+        in.close();
+        out.close();
+      }
+      if (!tmpFile.renameTo(jarFile)) {
+        // renameTo does not replace an existing file on all platforms
+        if (!jarFile.delete() || !tmpFile.renameTo(jarFile)) {
+          throw new IOException("Cannot replace " + jarFileName);
+        }
+      }
+    } finally {
+      tmpFile.delete();
+    }
+  }
+
+  /**
+   * Inserts the annotations contained in <code> scene </code> into
+   * every class file of the jar file read from <code> input </code>, and
+   * writes the resulting jar file into <code> out </code>.  Entries are
+   * streamed one at a time, in their original order and with their original
+   * timestamps; entries that are not class files, and classes that have no
+   * annotations in <code> scene </code>, are copied unchanged.
+   *
+   * @param scene the scene containing the annotations to insert
+   * @param input the input stream from which to read a jar file
+   * @param out the output stream the annotated jar file should be written to
+   * @param overwrite controls behavior when an annotation exists on a
+   * particular element in both the scene and the class file.  If true,
+   * then the one from the scene is used; else the the existing annotation
+   * in the class file is retained.
+   * @throws IOException if there is a problem reading from <code> input </code>
+   * or writing to <code> out </code>
+   */
+  public static void insertJar(AScene scene, InputStream input,
+      OutputStream out, boolean overwrite) throws IOException {
+    insertJar(scene, input, out, overwrite, 1);
+  }
+
+  /**
+   * Inserts the annotations contained in <code> scene </code> into
+   * every class file of the jar file read from <code> input </code>, and
+   * writes the resulting jar file into <code> out </code>, using
+   * <code> threads </code> worker threads.  The calling thread reads and
+   * writes the jar files; the workers rewrite classes.  As in
+   * {@link #insertJar(AScene, InputStream, OutputStream, boolean)}, entries
+   * keep their original order and timestamps.  At most a few entries per
+   * thread are held in memory at a time.
+   *
+   * <p>The workers share <code> scene </code>, which they only read, so
+   * entries for the same class, such as the versions of a class in a
+   * multi-release jar, may be rewritten at the same time.  Nothing may
+   * modify the scene meanwhile.
+   *
+   * @param scene the scene containing the annotations to insert
+   * @param input the input stream from which to read a jar file
+   * @param out the output stream the annotated jar file should be written to
+   * @param overwrite controls behavior when an annotation exists on a
+   * particular element in both the scene and the class file.  If true,
+   * then the one from the scene is used; else the the existing annotation
+   * in the class file is retained.
+   * @param threads the number of worker threads; if 1 or less, classes are
+   * rewritten by the calling thread
+   * @throws IOException if there is a problem reading from <code> input </code>
+   * or writing to <code> out </code>
+   */
+  public static void insertJar(final AScene scene, InputStream input,
+      OutputStream out, final boolean overwrite, int threads)
+      throws IOException {
+    ZipInputStream zin = new ZipInputStream(input);
+    ZipOutputStream zout = new ZipOutputStream(out);
+    ExecutorService executor =
+        threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+    // entries read but not yet written, in jar order
+    Deque<PendingEntry> pending = new ArrayDeque<>();
+    int maxPending = 4 * Math.max(threads, 1);
+    try {
+      for (ZipEntry entry; (entry = zin.getNextEntry()) != null; ) {
+        ZipEntry outEntry = new ZipEntry(entry.getName());
+        outEntry.setTime(entry.getTime());
+        if (entry.getComment() != null) {
+          outEntry.setComment(entry.getComment());
+        }
+        if (entry.getExtra() != null) {
+          outEntry.setExtra(entry.getExtra());
+        }
+        if (executor == null) {
+          zout.putNextEntry(outEntry);
+          if (isClassEntry(entry)) {
+            zout.write(insert(scene, new ClassReader(zin), overwrite));
+          } else {
+            copy(zin, zout);
+          }
+          zout.closeEntry();
+          continue;
+        }
+
+        if (isClassEntry(entry)) {
+          final ClassReader classReader = new ClassReader(zin);
+          pending.add(new PendingEntry(outEntry, executor.submit(
+              new Callable<byte[]>() {
+                @Override
+                public byte[] call() {
+                  return insert(scene, classReader, overwrite);
+                }
+              })));
+        } else {
+          ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+          copy(zin, bytes);
+          pending.add(new PendingEntry(outEntry, bytes.toByteArray()));
+        }
+        while (pending.size() > maxPending) {
+          pending.remove().write(zout);
+        }
+      }
+      while (!pending.isEmpty()) {
+        pending.remove().write(zout);
+      }
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+    }
+    zout.finish();
+  }
+
+  /** A jar entry that has been read, and whose contents may still be computed. */
+  private static class PendingEntry {
+    final ZipEntry entry;
+    final Future<byte[]> future;
+    final byte[] bytes;
+
+    PendingEntry(ZipEntry entry, Future<byte[]> future) {
+      this.entry = entry;
+      this.future = future;
+      this.bytes = null;
+    }
+
+    PendingEntry(ZipEntry entry, byte[] bytes) {
+      this.entry = entry;
+      this.future = null;
+      this.bytes = bytes;
+    }
+
+    /** Waits for the contents of the entry, then writes the entry. */
+    void write(ZipOutputStream zout) throws IOException {
+      byte[] b = bytes;
+      if (future != null) {
+        try {
+          b = future.get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while annotating "
+              + entry.getName());
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          } else if (cause instanceof Error) {
+            throw (Error) cause;
+          }
+          throw new Error(cause);
+        }
+      }
+      zout.putNextEntry(entry);
+      zout.write(b);
+      zout.closeEntry();
+    }
+  }
+
+  private static boolean isClassEntry(ZipEntry entry) {
+    return entry.getName().endsWith(".class") && !entry.isDirectory();
+  }
+
+  private static void copy(InputStream in, OutputStream out) throws IOException {
+    byte[] buf = new byte[8192];
+    for (int n; (n = in.read(buf)) >= 0; ) {
+      out.write(buf, 0, n);
+    }
+  }
+
+  /**
+   * Returns the class read by <code> classReader </code>, with the
+   * annotations contained in <code> scene </code> inserted.  If the scene
+   * has no annotations for the class, returns the class file unchanged,
+   * without rewriting it and without adding the class to the scene.
+   */
+  private static byte[] insert(AScene scene, ClassReader classReader,
+      boolean overwrite) {
+    if (!hasAnnotations(scene, classReader)) {
+      return classReader.b;
+    }
 
     ClassAnnotationSceneWriter classAnnotationSceneWriter =
       new ClassAnnotationSceneWriter(classReader, scene, overwrite);
 
     classReader.accept(classAnnotationSceneWriter, false);
 
-    OutputStream fos = new FileOutputStream(outputFileName);
-    fos.write(classAnnotationSceneWriter.toByteArray());
-    fos.close();
+    return classAnnotationSceneWriter.toByteArray();
+  }
+
+  /**
+   * Returns true if <code> scene </code> has anything to insert into the
+   * class read by <code> classReader </code>.  Does not modify the scene.
+   */
+  private static boolean hasAnnotations(AScene scene, ClassReader classReader) {
+    AClass aClass = scene.classes.get(classReader.getClassName().replace('/', '.'));
+    return aClass != null && !aClass.isEmpty();
   }
 }
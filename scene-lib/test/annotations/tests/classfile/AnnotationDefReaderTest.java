@@ -0,0 +1,96 @@
+package annotations.tests.classfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import scenelib.annotations.Annotation;
+import scenelib.annotations.el.AClass;
+import scenelib.annotations.el.AScene;
+import scenelib.annotations.el.AnnotationDef;
+import scenelib.annotations.io.classfile.ClassBytesProvider;
+import scenelib.annotations.io.classfile.ClassFileReader;
+
+/**
+ * Tests how {@link ClassFileReader} builds annotation definitions from the
+ * class files of annotation types.  Definitions are cached by name for
+ * the whole process, so the annotation types here have names that no
+ * other test uses.
+ */
+public class AnnotationDefReaderTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  /** Reads class {@code className} from {@code classes}. */
+  private static AClass read(File classes, String className)
+      throws IOException {
+    AScene scene = new AScene();
+    try (ClassBytesProvider provider = ClassBytesProvider.forDirectory(classes)) {
+      ClassFileReader.readFromClass(scene, className, provider);
+    }
+    AClass aClass = scene.classes.get(className);
+    Assert.assertNotNull(className, aClass);
+    return aClass;
+  }
+
+  private static AnnotationDef onlyDef(AClass aClass) {
+    Assert.assertEquals(1, aClass.tlAnnotationsHere.size());
+    Annotation a = aClass.tlAnnotationsHere.iterator().next();
+    return a.def;
+  }
+
+  @Test
+  public void testStaticInitializerIsNotAnElement() throws IOException {
+    Map<String, String> sources = new LinkedHashMap<>();
+    // An array constant makes javac emit a static initializer.
+    sources.put("defreader/clinit/Anno.java",
+        "package defreader.clinit;\n"
+        + "import java.lang.annotation.*;\n"
+        + "@Retention(RetentionPolicy.RUNTIME)\n"
+        + "public @interface Anno {\n"
+        + "  String[] DEFAULTS = {\"a\", \"b\"};\n"
+        + "  int value();\n"
+        + "}\n");
+    sources.put("defreader/clinit/C.java",
+        "package defreader.clinit; @Anno(3) public class C {}\n");
+    File classes = Fixtures.compile(tmp.newFolder("clinit"), sources);
+
+    AnnotationDef def = onlyDef(read(classes, "defreader.clinit.C"));
+    Assert.assertEquals("defreader.clinit.Anno", def.name);
+    Assert.assertEquals(Arrays.asList("value"),
+        new ArrayList<>(def.fieldTypes.keySet()));
+    Assert.assertEquals("int", def.fieldTypes.get("value").toString());
+  }
+
+  @Test
+  public void testElementsInDeclarationOrder() throws IOException {
+    Map<String, String> sources = new LinkedHashMap<>();
+    sources.put("defreader/order/Anno.java",
+        "package defreader.order;\n"
+        + "import java.lang.annotation.*;\n"
+        + "@Retention(RetentionPolicy.RUNTIME)\n"
+        + "public @interface Anno {\n"
+        + "  int zeta();\n"
+        + "  String[] NAMES = {\"constant\"};\n"
+        + "  String alpha() default \"x\";\n"
+        + "  Class<?> mid() default Object.class;\n"
+        + "  long[] beta() default {};\n"
+        + "}\n");
+    sources.put("defreader/order/C.java",
+        "package defreader.order; @Anno(zeta = 1) public class C {}\n");
+    File classes = Fixtures.compile(tmp.newFolder("order"), sources);
+
+    AnnotationDef def = onlyDef(read(classes, "defreader.order.C"));
+    Assert.assertEquals(Arrays.asList("zeta", "alpha", "mid", "beta"),
+        new ArrayList<>(def.fieldTypes.keySet()));
+  }
+}
@@ -0,0 +1,216 @@
+package annotations.tests.classfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import scenelib.annotations.io.classfile.ClassBytesProvider;
+
+/**
+ * Tests {@link ClassBytesProvider}.  The providers only look class files
+ * up by name, so most tests use short byte strings in place of real class
+ * files.
+ */
+public class ClassBytesProviderTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private static byte[] bytes(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static void assertBytes(String expected, byte[] actual) {
+    Assert.assertNotNull(actual);
+    Assert.assertEquals(expected, new String(actual, StandardCharsets.UTF_8));
+  }
+
+  /** Makes a directory holding p.C and p.D$E, and returns it. */
+  private File classDir(String name, String contents) throws IOException {
+    File dir = tmp.newFolder(name);
+    Fixtures.write(dir, "p/C.class", bytes(contents));
+    Fixtures.write(dir, "p/D$E.class", bytes("nested"));
+    Fixtures.write(dir, "p/readme.txt", bytes("not a class"));
+    return dir;
+  }
+
+  @Test
+  public void testSystem() throws IOException {
+    byte[] b = ClassBytesProvider.SYSTEM.getClassBytes("java.lang.Object");
+    Assert.assertNotNull(b);
+    Assert.assertEquals(0xCAFEBABE, ((b[0] & 0xff) << 24) | ((b[1] & 0xff) << 16)
+        | ((b[2] & 0xff) << 8) | (b[3] & 0xff));
+    Assert.assertNull(ClassBytesProvider.SYSTEM.getClassBytes("no.such.Class"));
+  }
+
+  @Test
+  public void testDirectory() throws IOException {
+    File dir = classDir("dir", "C in dir");
+    ClassBytesProvider p = ClassBytesProvider.forDirectory(dir);
+    assertBytes("C in dir", p.getClassBytes("p.C"));
+    assertBytes("nested", p.getClassBytes("p.D$E"));
+    Assert.assertNull(p.getClassBytes("p.Missing"));
+    Assert.assertNull(p.getClassBytes("p.readme"));
+  }
+
+  @Test
+  public void testJar() throws IOException {
+    File jar = tmp.newFile("classes.jar");
+    Fixtures.jar(classDir("dir", "C in jar"), jar);
+    try (ClassBytesProvider p = ClassBytesProvider.forJar(jar)) {
+      assertBytes("C in jar", p.getClassBytes("p.C"));
+      assertBytes("nested", p.getClassBytes("p.D$E"));
+      Assert.assertNull(p.getClassBytes("p.Missing"));
+      Assert.assertNull(p.getClassBytes("p.readme"));
+      // The bytes can be read more than once.
+      assertBytes("C in jar", p.getClassBytes("p.C"));
+    }
+  }
+
+  @Test
+  public void testJmod() throws IOException {
+    // A jmod file is a zip file after a 4-byte "JM" header, with the
+    // classes under "classes/".
+    File jmod = tmp.newFile("m.jmod");
+    File dir = classDir("dir", "C in jmod");
+    Fixtures.write(dir, "q/Top.class", bytes("top"));
+    Fixtures.zip(dir, jmod, new byte[] {'J', 'M', 1, 0}, "classes/");
+    try (ClassBytesProvider p = ClassBytesProvider.forFile(jmod)) {
+      assertBytes("C in jmod", p.getClassBytes("p.C"));
+      assertBytes("top", p.getClassBytes("q.Top"));
+      Assert.assertNull(p.getClassBytes("classes.p.C"));
+    }
+  }
+
+  @Test
+  public void testJmodIgnoresEntriesOutsideClasses() throws IOException {
+    File jmod = tmp.newFile("m.jmod");
+    Fixtures.zip(classDir("dir", "C"), jmod, new byte[] {'J', 'M', 1, 0},
+        "lib/");
+    try (ClassBytesProvider p = ClassBytesProvider.forJmod(jmod)) {
+      Assert.assertNull(p.getClassBytes("p.C"));
+    }
+  }
+
+  @Test
+  public void testForFile() throws IOException {
+    File dir = classDir("dir", "C in dir");
+    File jar = tmp.newFile("classes.zip");
+    Fixtures.jar(classDir("forjar", "C in zip"), jar);
+    try (ClassBytesProvider d = ClassBytesProvider.forFile(dir);
+        ClassBytesProvider j = ClassBytesProvider.forFile(jar)) {
+      assertBytes("C in dir", d.getClassBytes("p.C"));
+      assertBytes("C in zip", j.getClassBytes("p.C"));
+    }
+    try {
+      ClassBytesProvider.forFile(new File(dir, "no-such-file.jar"));
+      Assert.fail("expected IOException");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testClassPathOrder() throws IOException {
+    File first = classDir("first", "first C");
+    File jar = tmp.newFile("second.jar");
+    File second = classDir("second", "second C");
+    Fixtures.write(second, "p/OnlySecond.class", bytes("only second"));
+    Fixtures.jar(second, jar);
+    String cp = String.join(File.pathSeparator, Arrays.asList(
+        new File(tmp.getRoot(), "missing").getPath(), "",
+        first.getPath(), jar.getPath()));
+    try (ClassBytesProvider p = ClassBytesProvider.forClassPath(cp)) {
+      assertBytes("first C", p.getClassBytes("p.C"));
+      assertBytes("only second", p.getClassBytes("p.OnlySecond"));
+      Assert.assertNull(p.getClassBytes("p.Missing"));
+    }
+
+    cp = jar.getPath() + File.pathSeparator + first.getPath();
+    try (ClassBytesProvider p = ClassBytesProvider.forClassPath(cp)) {
+      assertBytes("second C", p.getClassBytes("p.C"));
+    }
+  }
+
+  @Test
+  public void testGetClassReaderMissing() throws IOException {
+    ClassBytesProvider p = ClassBytesProvider.forDirectory(tmp.getRoot());
+    try {
+      p.getClassReader("p.Missing");
+      Assert.fail("expected IOException");
+    } catch (IOException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("p.Missing"));
+    }
+  }
+
+  /** A provider that records each lookup and knows every class. */
+  private static class CountingProvider extends ClassBytesProvider {
+    final List<String> lookups = new ArrayList<>();
+    boolean closed = false;
+
+    @Override
+    public byte[] getClassBytes(String className) {
+      lookups.add(className);
+      return className.startsWith("missing") ? null : bytes(className);
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+
+  @Test
+  public void testCachedEvictsLeastRecentlyUsed() throws IOException {
+    CountingProvider counting = new CountingProvider();
+    ClassBytesProvider p = ClassBytesProvider.cached(counting, 2);
+    assertBytes("A", p.getClassBytes("A"));
+    assertBytes("B", p.getClassBytes("B"));
+    assertBytes("A", p.getClassBytes("A"));  // hit; A is now most recent
+    assertBytes("C", p.getClassBytes("C"));  // evicts B
+    assertBytes("A", p.getClassBytes("A"));  // hit
+    assertBytes("B", p.getClassBytes("B"));  // miss; evicts C
+    assertBytes("C", p.getClassBytes("C"));  // miss
+    Assert.assertEquals(Arrays.asList("A", "B", "C", "B", "C"),
+        counting.lookups);
+  }
+
+  @Test
+  public void testCachedDoesNotCacheMisses() throws IOException {
+    CountingProvider counting = new CountingProvider();
+    ClassBytesProvider p = ClassBytesProvider.cached(counting, 2);
+    Assert.assertNull(p.getClassBytes("missing.A"));
+    Assert.assertNull(p.getClassBytes("missing.A"));
+    Assert.assertEquals(Arrays.asList("missing.A", "missing.A"),
+        counting.lookups);
+  }
+
+  @Test
+  public void testCloseClosesDelegates() throws IOException {
+    CountingProvider a = new CountingProvider();
+    CountingProvider b = new CountingProvider();
+    ClassBytesProvider.composite(
+        Arrays.<ClassBytesProvider>asList(a, ClassBytesProvider.cached(b, 1)))
+        .close();
+    Assert.assertTrue(a.closed);
+    Assert.assertTrue(b.closed);
+  }
+
+  @Test
+  public void testCompositeAsksInOrder() throws IOException {
+    CountingProvider a = new CountingProvider();
+    ClassBytesProvider empty = ClassBytesProvider.forDirectory(tmp.getRoot());
+    ClassBytesProvider p = ClassBytesProvider.composite(
+        Arrays.<ClassBytesProvider>asList(empty, a));
+    assertBytes("x.Y", p.getClassBytes("x.Y"));
+    Assert.assertEquals(Arrays.asList("x.Y"), a.lookups);
+  }
+}
@@ -0,0 +1,160 @@
+package annotations.tests.classfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import scenelib.annotations.el.AClass;
+import scenelib.annotations.el.AScene;
+import scenelib.annotations.el.DefException;
+import scenelib.annotations.io.IndexFileWriter;
+import scenelib.annotations.io.classfile.ClassFileReader;
+
+/**
+ * Tests the bulk mode of {@link ClassFileReader}, which reads every class
+ * of jars and class directories: {@link ClassFileReader#readAll}.
+ */
+public class ClassFileReaderBulkTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File jar;
+  private File dir;
+
+  @Before
+  public void makeInputs() throws IOException {
+    Map<String, String> sources = new LinkedHashMap<>();
+    sources.put("p/Anno.java",
+        "package p;\n"
+        + "import java.lang.annotation.*;\n"
+        + "@Retention(RetentionPolicy.RUNTIME)\n"
+        + "@Target({ElementType.TYPE_USE, ElementType.TYPE, ElementType.METHOD})\n"
+        + "public @interface Anno { String value() default \"\"; }\n");
+    sources.put("p/Plain.java",
+        "package p; public class Plain { int f; }\n");
+    sources.put("p/Fields.java",
+        "package p;\n"
+        + "@Anno(\"class\") public class Fields {\n"
+        + "  @Anno Object a;\n"
+        + "  java.util.List<@Anno(\"arg\") String> b;\n"
+        + "  static class Nested { @Anno(\"nested\") int c; }\n"
+        + "}\n");
+    for (int i = 0; i < 12; i++) {
+      sources.put("q/M" + i + ".java",
+          "package q;\n"
+          + "public class M" + i + " {\n"
+          + "  @p.Anno(\"m" + i + "\") String m(@p.Anno Object x) {\n"
+          + "    @p.Anno(\"local\") Object y = (@p.Anno Object) x;\n"
+          + "    return String.valueOf(y);\n"
+          + "  }\n"
+          + "}\n");
+    }
+    File classes = Fixtures.compile(tmp.newFolder("compiled"), sources);
+
+    // The p classes go in a jar; the q classes stay in a directory.
+    File pOnly = tmp.newFolder("p-only");
+    for (File f : Fixtures.files(new File(classes, "p"))) {
+      Fixtures.write(pOnly, "p/" + f.getName(),
+          Files.readAllBytes(f.toPath()));
+    }
+    jar = tmp.newFile("p.jar");
+    Fixtures.jar(pOnly, jar);
+    for (File f : Fixtures.files(new File(classes, "p"))) {
+      f.delete();
+    }
+    dir = classes;
+  }
+
+  private String extract(int threads) throws IOException {
+    AScene scene = new AScene();
+    long[] counts = ClassFileReader.readAll(scene,
+        new String[] {jar.getPath(), dir.getPath()}, threads);
+    Assert.assertEquals(4 + 12, counts[0]);
+    StringWriter out = new StringWriter();
+    try {
+      IndexFileWriter.write(scene, out);
+    } catch (DefException e) {
+      throw new AssertionError(e);
+    }
+    return out.toString();
+  }
+
+  @Test
+  public void testThreadsAgree() throws IOException {
+    String sequential = extract(1);
+    for (int i = 0; i < 3; i++) {
+      Assert.assertEquals(sequential, extract(4));
+    }
+  }
+
+  @Test
+  public void testContents() throws IOException {
+    String jaif = extract(4);
+    List<String> classes = new ArrayList<>();
+    for (String line : jaif.split("\n")) {
+      if (line.startsWith("class ")) {
+        classes.add(line.substring("class ".length(), line.indexOf(':')));
+      }
+    }
+    // Sorted by name, and only classes with annotations: Anno has its
+    // meta-annotations, but Plain has none.
+    List<String> expected = new ArrayList<>(Arrays.asList(
+        "Anno", "Fields", "Fields$Nested"));
+    List<String> ms = new ArrayList<>();
+    for (int i = 0; i < 12; i++) {
+      ms.add("M" + i);
+    }
+    Collections.sort(ms);
+    expected.addAll(ms);
+    Assert.assertEquals(expected, classes);
+    Assert.assertTrue(jaif, jaif.contains("@p.Anno(value=\"class\")"));
+    Assert.assertTrue(jaif, jaif.contains("@p.Anno(value=\"nested\")"));
+    Assert.assertTrue(jaif, jaif.contains("@p.Anno(value=\"local\")"));
+    Assert.assertFalse(jaif, jaif.contains("class Plain"));
+  }
+
+  @Test
+  public void testDuplicateClass() throws IOException {
+    // The same classes in a directory and in a jar of that directory.
+    File copy = tmp.newFile("q.jar");
+    Fixtures.jar(dir, copy);
+    AScene scene = new AScene();
+    try {
+      ClassFileReader.readAll(scene,
+          new String[] {dir.getPath(), copy.getPath()}, 4);
+      Assert.fail("expected IOException");
+    } catch (IOException e) {
+      Assert.assertTrue(e.getMessage(),
+          e.getMessage().matches("Class q\\.M[0-9]+ found more than once"));
+    }
+    Assert.assertTrue(scene.classes.isEmpty());
+  }
+
+  @Test
+  public void testClassAlreadyInScene() throws IOException {
+    AScene scene = new AScene();
+    AClass existing = scene.classes.getVivify("q.M3");
+    try {
+      ClassFileReader.readAll(scene, new String[] {dir.getPath()}, 4);
+      Assert.fail("expected IOException");
+    } catch (IOException e) {
+      Assert.assertEquals("Class q.M3 is already in the scene", e.getMessage());
+    }
+    Assert.assertEquals(1, scene.classes.size());
+    Assert.assertSame(existing, scene.classes.get("q.M3"));
+  }
+}
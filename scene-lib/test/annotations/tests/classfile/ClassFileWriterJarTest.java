@@ -0,0 +1,219 @@
+package annotations.tests.classfile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import scenelib.annotations.el.AScene;
+import scenelib.annotations.el.DefException;
+import scenelib.annotations.io.IndexFileParser;
+import scenelib.annotations.io.IndexFileWriter;
+import scenelib.annotations.io.classfile.ClassFileWriter;
+
+/**
+ * Tests the jar-to-jar mode of {@link ClassFileWriter}:
+ * {@link ClassFileWriter#insertJar(AScene, InputStream,
+ * java.io.OutputStream, boolean, int)}.
+ */
+public class ClassFileWriterJarTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private static final String JAIF =
+      "package annotations.tests.classfile.foo:\n"
+      + "annotation @A: @Retention(value=RUNTIME)"
+      + " @java.lang.annotation.Target(value={TYPE_USE})\n"
+      + "\n"
+      + "package p:\n"
+      + "class Annotated: @annotations.tests.classfile.foo.A\n"
+      + "\tfield f: @annotations.tests.classfile.foo.A\n"
+      + "\tmethod m()V:\n"
+      + "\t\treturn: @annotations.tests.classfile.foo.A\n";
+
+  /** Map from entry name to contents, in jar order. */
+  private final Map<String, byte[]> entries = new LinkedHashMap<>();
+
+  /** The jar made of {@link #entries}. */
+  private byte[] jar;
+
+  @Before
+  public void makeJar() throws IOException {
+    Map<String, String> sources = new LinkedHashMap<>();
+    sources.put("p/Annotated.java",
+        "package p; public class Annotated { Object f; void m() {} }");
+    sources.put("p/Plain.java",
+        "package p; public class Plain { int g(int x) { return x + 1; } }");
+    File classes = Fixtures.compile(tmp.newFolder("plain"), sources);
+    byte[] annotated = Files.readAllBytes(
+        new File(classes, "p/Annotated.class").toPath());
+    byte[] plain = Files.readAllBytes(new File(classes, "p/Plain.class").toPath());
+
+    // Not in name order, to check that the order is kept.
+    entries.put("META-INF/MANIFEST.MF",
+        "Manifest-Version: 1.0\nMulti-Release: true\n\n"
+        .getBytes(StandardCharsets.UTF_8));
+    entries.put("p/Plain.class", plain);
+    entries.put("p/", new byte[0]);
+    entries.put("p/Annotated.class", annotated);
+    entries.put("p/data.txt", "some data".getBytes(StandardCharsets.UTF_8));
+    // A multi-release jar holds another copy of the class, which is the
+    // same class to the scene.
+    entries.put("META-INF/versions/9/p/Annotated.class", annotated);
+    for (int i = 0; i < 20; i++) {
+      entries.put("q/Copy" + i + ".class", plain);
+    }
+    // Shaded copies of a class are still the same class to the scene, and
+    // may be rewritten at the same time.
+    for (int i = 0; i < 20; i++) {
+      entries.put("shaded" + i + "/p/Annotated.class", annotated);
+    }
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ZipOutputStream zout = new ZipOutputStream(bytes)) {
+      long time = 946684800000L;  // 2000-01-01, a multiple of 2 seconds
+      for (Map.Entry<String, byte[]> e : entries.entrySet()) {
+        ZipEntry entry = new ZipEntry(e.getKey());
+        entry.setTime(time);
+        time += 3600 * 1000;
+        zout.putNextEntry(entry);
+        zout.write(e.getValue());
+        zout.closeEntry();
+      }
+    }
+    jar = bytes.toByteArray();
+  }
+
+  private static AScene scene() throws IOException {
+    AScene scene = new AScene();
+    IndexFileParser.parseString(JAIF, "ClassFileWriterJarTest", scene);
+    return scene;
+  }
+
+  private byte[] insertJar(int threads) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ClassFileWriter.insertJar(scene(), new ByteArrayInputStream(jar), out,
+        true, threads);
+    return out.toByteArray();
+  }
+
+  /** A jar entry as read back. */
+  private static class Entry {
+    final String name;
+    final long time;
+    final byte[] bytes;
+
+    Entry(String name, long time, byte[] bytes) {
+      this.name = name;
+      this.time = time;
+      this.bytes = bytes;
+    }
+  }
+
+  private static List<Entry> read(byte[] jarBytes) throws IOException {
+    List<Entry> result = new ArrayList<>();
+    try (ZipInputStream zin =
+        new ZipInputStream(new ByteArrayInputStream(jarBytes))) {
+      for (ZipEntry e; (e = zin.getNextEntry()) != null; ) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        for (int n; (n = zin.read(buf)) >= 0; ) {
+          bytes.write(buf, 0, n);
+        }
+        result.add(new Entry(e.getName(), e.getTime(), bytes.toByteArray()));
+      }
+    }
+    return result;
+  }
+
+  /** Returns what the single-class insert method makes of a class. */
+  private static byte[] insertClass(byte[] classFile) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ClassFileWriter.insert(scene(), new ByteArrayInputStream(classFile), out,
+        true);
+    return out.toByteArray();
+  }
+
+  private void check(byte[] output) throws IOException {
+    List<Entry> in = read(jar);
+    List<Entry> out = read(output);
+    Assert.assertEquals(in.size(), out.size());
+    byte[] annotated = insertClass(entries.get("p/Annotated.class"));
+    Assert.assertFalse(Arrays.equals(annotated,
+        entries.get("p/Annotated.class")));
+    for (int i = 0; i < in.size(); i++) {
+      Entry e = in.get(i);
+      Entry o = out.get(i);
+      Assert.assertEquals(e.name, o.name);
+      Assert.assertEquals(e.name, e.time, o.time);
+      if (Arrays.equals(e.bytes, entries.get("p/Annotated.class"))) {
+        Assert.assertArrayEquals(e.name, annotated, o.bytes);
+      } else {
+        Assert.assertArrayEquals(e.name, e.bytes, o.bytes);
+      }
+    }
+  }
+
+  @Test
+  public void testSequential() throws IOException {
+    check(insertJar(1));
+  }
+
+  @Test
+  public void testParallel() throws IOException {
+    check(insertJar(4));
+  }
+
+  @Test
+  public void testSceneNotModified() throws IOException {
+    AScene scene = scene();
+    String before = unparse(scene);
+    List<String> classes = new ArrayList<>(scene.classes.keySet());
+    List<String> methods =
+        new ArrayList<>(scene.classes.get("p.Annotated").methods.keySet());
+    ClassFileWriter.insertJar(scene, new ByteArrayInputStream(jar),
+        new ByteArrayOutputStream(), true, 4);
+    Assert.assertEquals(before, unparse(scene));
+    Assert.assertEquals(classes, new ArrayList<>(scene.classes.keySet()));
+    Assert.assertEquals(Arrays.asList("m()V"), methods);
+    Assert.assertEquals(methods,
+        new ArrayList<>(scene.classes.get("p.Annotated").methods.keySet()));
+  }
+
+  private static String unparse(AScene scene) throws IOException {
+    StringWriter out = new StringWriter();
+    try {
+      IndexFileWriter.write(scene, out);
+    } catch (DefException e) {
+      throw new AssertionError(e);
+    }
+    return out.toString();
+  }
+
+  @Test
+  public void testParallelMatchesSequential() throws IOException {
+    byte[] sequential = insertJar(1);
+    for (int i = 0; i < 5; i++) {
+      Assert.assertArrayEquals(sequential, insertJar(4));
+    }
+  }
+}
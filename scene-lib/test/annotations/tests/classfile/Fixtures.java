@@ -0,0 +1,124 @@
+package annotations.tests.classfile;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.junit.Assert;
+
+/**
+ * Helpers for tests that need class files, jars and jmods made on the
+ * fly, rather than checked in like the class files of
+ * {@link AnnotationsTest}.
+ */
+final class Fixtures {
+
+  private Fixtures() {}
+
+  /**
+   * Compiles the given sources, which may refer to each other.
+   *
+   * @param dir the directory to which to write the sources and the class
+   *  files
+   * @param sources map from source file name, such as {@code p/C.java},
+   *  to its contents
+   * @return the directory holding the class files, laid out by package
+   */
+  static File compile(File dir, Map<String, String> sources)
+      throws IOException {
+    File src = new File(dir, "src");
+    File classes = new File(dir, "classes");
+    classes.mkdirs();
+    List<String> args = new ArrayList<>(Arrays.asList(
+        "-nowarn", "-Xlint:-options", "-source", "8", "-target", "8",
+        "-d", classes.getPath()));
+    for (Map.Entry<String, String> e : sources.entrySet()) {
+      File f = new File(src, e.getKey());
+      f.getParentFile().mkdirs();
+      Files.write(f.toPath(), e.getValue().getBytes(StandardCharsets.UTF_8));
+      args.add(f.getPath());
+    }
+    JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+    Assert.assertNotNull("no system Java compiler", javac);
+    int status = javac.run(null, null, null, args.toArray(new String[0]));
+    Assert.assertEquals("compilation failed", 0, status);
+    return classes;
+  }
+
+  /** Returns a one-entry map, for {@link #compile}. */
+  static Map<String, String> source(String name, String text) {
+    Map<String, String> m = new LinkedHashMap<>();
+    m.put(name, text);
+    return m;
+  }
+
+  /**
+   * Writes the files below a directory to a zip file, in name order, under
+   * the given prefix.
+   *
+   * @param dir the directory to archive
+   * @param zip the file to write
+   * @param header bytes to write before the zip data, as in a jmod file
+   * @param prefix the prefix of the entry names, such as {@code "classes/"}
+   */
+  static void zip(File dir, File zip, byte[] header, String prefix)
+      throws IOException {
+    try (OutputStream out = new FileOutputStream(zip)) {
+      out.write(header);
+      ZipOutputStream zout = new ZipOutputStream(out);
+      for (File f : files(dir)) {
+        String name = dir.toPath().relativize(f.toPath()).toString()
+            .replace(File.separatorChar, '/');
+        zout.putNextEntry(new ZipEntry(prefix + name));
+        zout.write(Files.readAllBytes(f.toPath()));
+        zout.closeEntry();
+      }
+      zout.finish();
+    }
+  }
+
+  /** Writes the files below a directory to a jar file, in name order. */
+  static void jar(File dir, File jar) throws IOException {
+    zip(dir, jar, new byte[0], "");
+  }
+
+  /** Returns the regular files below a directory, sorted by path. */
+  static List<File> files(File dir) {
+    List<File> result = new ArrayList<>();
+    File[] children = dir.listFiles();
+    if (children != null) {
+      Arrays.sort(children);
+      for (File child : children) {
+        if (child.isDirectory()) {
+          result.addAll(files(child));
+        } else {
+          result.add(child);
+        }
+      }
+    }
+    Collections.sort(result);
+    return result;
+  }
+
+  /** Writes {@code bytes} to {@code dir/name}, creating directories. */
+  static File write(File dir, String name, byte[] bytes) throws IOException {
+    File f = new File(dir, name);
+    f.getParentFile().mkdirs();
+    Files.write(f.toPath(), bytes);
+    return f;
+  }
+}